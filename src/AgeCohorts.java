@@ -0,0 +1,224 @@
+/**
+ * Holds a predator population split into cohorts by age.  Cohorts are kept
+ * in a ring indexed by age, so aging the whole population only moves the
+ * ring's starting point instead of touching every predator.  When the
+ * population ages, the oldest cohort's slot is reused for the next cohort of
+ * newborns, and the predators in it die of old age.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+public class AgeCohorts implements Iterable<Predator> {
+    private List<List<Predator>> ring;
+
+    // Ring slot holding the youngest cohort
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Constructor for an empty population
+     * @param maxAge Number of generations a predator can live
+     */
+    public AgeCohorts(int maxAge) {
+        this.ring = new ArrayList<>(maxAge);
+        for (int i = 0; i < maxAge; i++) {
+            ring.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Getter for the number of ages a predator can reach
+     * @return Length of the ring
+     */
+    public int getMaxAge() {
+        return ring.size();
+    }
+
+    /**
+     * Returns every predator of one age
+     * @param age Age of the cohort, where 0 is the youngest
+     * @return Cohort of predators, which may be modified in place
+     */
+    public List<Predator> getCohort(int age) {
+        return ring.get((head + age) % ring.size());
+    }
+
+    /**
+     * Adds a predator to the end of the cohort of its age
+     * @param pred Predator to add
+     * @param age Age of the predator, clamped to the oldest cohort
+     * @return Position of the predator in flatten() order
+     */
+    public int add(Predator pred, int age) {
+        age = Math.min(age, ring.size() - 1);
+        getCohort(age).add(pred);
+        size++;
+        int index = -1;
+        for (int younger = 0; younger <= age; younger++) {
+            index += getCohort(younger).size();
+        }
+        return index;
+    }
+
+    /**
+     * Adds predators to the ends of the cohorts of their ages
+     * @param predators Predators to add
+     * @param ages Age of each predator, clamped to the oldest cohort
+     */
+    public void addAll(List<Predator> predators, int[] ages) {
+        for (int i = 0; i < ages.length; i++) {
+            getCohort(Math.min(ages[i], ring.size() - 1)).add(predators.get(i));
+        }
+        size += ages.length;
+    }
+
+    /**
+     * Ages every predator by one generation.  Predators already at the
+     * maximum age die.
+     * @return Number of predators that died of old age
+     */
+    public int age() {
+        head = Math.floorMod(head - 1, ring.size());
+        List<Predator> expired = ring.get(head);
+        int died = expired.size();
+        expired.clear();
+        size -= died;
+        return died;
+    }
+
+    /**
+     * Removes every predator that matches a condition
+     * @param condition Condition for removal
+     */
+    public void removeIf(Predicate<Predator> condition) {
+        size = 0;
+        for (List<Predator> cohort : ring) {
+            cohort.removeIf(condition);
+            size += cohort.size();
+        }
+    }
+
+    /**
+     * Removes every predator of one age that matches a condition
+     * @param age Age of the cohort
+     * @param condition Condition for removal
+     */
+    public void removeIf(int age, Predicate<Predator> condition) {
+        List<Predator> cohort = getCohort(age);
+        int before = cohort.size();
+        cohort.removeIf(condition);
+        size -= before - cohort.size();
+    }
+
+    /**
+     * Removes a predator by its position in flatten() order
+     * @param index Position of the predator
+     * @return Removed predator
+     */
+    public Predator remove(int index) {
+        for (int age = 0; age < ring.size(); age++) {
+            List<Predator> cohort = getCohort(age);
+            if (index < cohort.size()) {
+                size--;
+                return cohort.remove(index);
+            }
+            index -= cohort.size();
+        }
+        throw new IndexOutOfBoundsException("Predator " + index + " of " + size);
+    }
+
+    /**
+     * Finds the age of a predator by its position in flatten() order
+     * @param index Position of the predator
+     * @return Age of the predator
+     */
+    public int ageOf(int index) {
+        for (int age = 0; age < ring.size(); age++) {
+            int cohortSize = getCohort(age).size();
+            if (index < cohortSize) {
+                return age;
+            }
+            index -= cohortSize;
+        }
+        throw new IndexOutOfBoundsException("Predator " + index + " of " + size);
+    }
+
+    /**
+     * Empties every cohort
+     */
+    public void clear() {
+        for (List<Predator> cohort : ring) {
+            cohort.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Getter for the number of predators in all cohorts
+     * @return Population size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over every predator in flatten() order without copying them
+     * @return Iterator over all predators
+     */
+    @Override
+    public Iterator<Predator> iterator() {
+        return new Iterator<Predator>() {
+            private int age = 0;
+            private Iterator<Predator> cohort = getCohort(0).iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!cohort.hasNext() && age < ring.size() - 1) {
+                    age++;
+                    cohort = getCohort(age).iterator();
+                }
+                return cohort.hasNext();
+            }
+
+            @Override
+            public Predator next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return cohort.next();
+            }
+        };
+    }
+
+    /**
+     * Lists every predator, youngest cohort first
+     * @return New list of all predators
+     */
+    public List<Predator> flatten() {
+        List<Predator> predators = new ArrayList<>(size);
+        for (int age = 0; age < ring.size(); age++) {
+            predators.addAll(getCohort(age));
+        }
+        return predators;
+    }
+
+    /**
+     * Lists every predator's age, in flatten() order
+     * @return Ages of all predators
+     */
+    public int[] flattenAges() {
+        int[] ages = new int[size];
+        int i = 0;
+        for (int age = 0; age < ring.size(); age++) {
+            int cohortSize = getCohort(age).size();
+            for (int j = 0; j < cohortSize; j++) {
+                ages[i++] = age;
+            }
+        }
+        return ages;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Draws indexes at random with chances proportional to a set of weights, in
+ * constant time per draw, using Walker's alias method (in Vose's form).
+ *
+ * Building the table takes one pass over the weights.  Each index then owns
+ * an equal-width column, split between itself and one "alias" index; a draw
+ * picks a column uniformly and then picks one of its two owners.
+ */
+
+import java.util.Random;
+
+public class AliasTable {
+    private double[] probability;
+    private int[] alias;
+
+    /**
+     * Builds an alias table
+     * @param weights Non-negative weights, at least one of which is positive
+     */
+    public AliasTable(int[] weights) {
+        int n = weights.length;
+        this.probability = new double[n];
+        this.alias = new int[n];
+
+        double total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        if (!(total > 0)) {
+            throw new IllegalArgumentException("Alias table needs a positive weight");
+        }
+
+        // Scale weights so that the average column is exactly full, then
+        // sort columns into underfull and overfull stacks
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (double)weights[i] * n / total;
+            if (scaled[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+
+        // Top up each underfull column with part of an overfull one
+        while (numSmall > 0 && numLarge > 0) {
+            int less = small[--numSmall];
+            int more = large[--numLarge];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[numSmall++] = more;
+            } else {
+                large[numLarge++] = more;
+            }
+        }
+
+        // Whatever is left is full, apart from rounding error
+        while (numLarge > 0) {
+            probability[large[--numLarge]] = 1.0;
+        }
+        while (numSmall > 0) {
+            probability[small[--numSmall]] = 1.0;
+        }
+    }
+
+    /**
+     * Draws an index
+     * @param random Random for use in math
+     * @return Index drawn with chance proportional to its weight
+     */
+    public int sample(Random random) {
+        int column = random.nextInt(probability.length);
+        if (random.nextDouble() < probability[column]) {
+            return column;
+        }
+        return alias[column];
+    }
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+/**
+ * Streams every locale's statistics into a compact binary file as the
+ * simulation runs.  Each locale's columns are slowly changing series, so
+ * instead of formatting every value as text, each value is stored as its
+ * difference from what the locale's previous values predict:
+ *
+ *  - Generation, prey and predators use delta-of-delta encoding.  A series
+ *    that changes by the same amount as last time costs a single bit.
+ *  - Kill rates use XOR encoding, as in Facebook's Gorilla.  A double is
+ *    XORed with the locale's previous one, and only the bits between the
+ *    leading and trailing zeros of the result are stored.  Kill rates drift
+ *    slowly, so the sign, exponent and high mantissa bits usually cancel.
+ *
+ * By default kill rates are stored losslessly, so decoding gives back exactly
+ * the same doubles.  Their low mantissa bits are mostly noise from mutation,
+ * though, and cost the most to store; keeping fewer mantissa bits rounds
+ * each kill rate and shrinks the file further.  With 20 bits, kill rates are
+ * still accurate to about six significant digits.
+ * CompressedResultsReader turns a file back into .csv.
+ *
+ * File layout, all bits written most significant first:
+ *
+ *   32 bits  magic number, 0x53505A31 ("SPZ1")
+ *   32 bits  x dimension of the metapopulation
+ *   32 bits  y dimension of the metapopulation
+ *
+ * followed by a series of tagged entries:
+ *
+ *   0    record for the locale after the previous record's locale
+ *   10   32 bit locale index (x * y dimension + y), then a record
+ *   110  end of a generation; the next record's locale starts from index 0
+ *   111  end of the stream, padded with zeros to a multiple of 8 bytes
+ *
+ * A record is the locale's generation, prey and predators as delta-of-delta
+ * values, then its maximum and average kill rate as XOR values.  Every
+ * locale's series starts from a previous value and delta of zero.
+ *
+ * Delta-of-delta value d:
+ *
+ *   0                      d == 0
+ *   10   + 7 bit value     -64 <= d < 64
+ *   110  + 12 bit value    -2048 <= d < 2048
+ *   1110 + 20 bit value    -524288 <= d < 524288
+ *   1111 + 64 bit value    anything else
+ *
+ * XOR value x, compared against the locale's previous bit window:
+ *
+ *   0                      x == 0
+ *   10   + meaningful bits x fits in the previous window
+ *   11   + 6 bit leading zeros + 6 bit (meaningful length - 1)
+ *        + meaningful bits
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class CompressedResults implements ResultsListener {
+    public static final int MAGIC = 0x53505A31;
+
+    // Entry tags
+    static final int TAG_NEXT = 0b0;
+    static final int TAG_INDEX = 0b10;
+    static final int TAG_END_GENERATION = 0b110;
+    static final int TAG_END_STREAM = 0b111;
+
+    /*
+     * Previous values of one locale's series, shared by the encoder and
+     * decoder so that both predict the same way
+     */
+    static class SeriesState {
+        long[] previous = new long[3];
+        long[] delta = new long[3];
+        long[] previousBits = new long[2];
+        int[] leading = new int[2];
+        int[] trailing = new int[2];
+
+        SeriesState() {
+            // No window yet, so the first non-zero XOR stores its own
+            leading[0] = leading[1] = Integer.MAX_VALUE;
+        }
+    }
+
+    private DataOutputStream out;
+    private int yDimension;
+    private long mantissaMask;
+    private SeriesState[] states;
+    private int lastIndex = -1;
+    private boolean closed = false;
+
+    // Bits waiting to be written, filled from the most significant end
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+
+    /**
+     * Creates, or overwrites, a compressed results file that stores kill rates
+     * losslessly
+     * @param fileName Name of the file to write
+     * @param xDimension Width of the metapopulation
+     * @param yDimension Height of the metapopulation
+     */
+    public CompressedResults(String fileName, int xDimension, int yDimension) {
+        this(fileName, xDimension, yDimension, 52);
+    }
+
+    /**
+     * Creates, or overwrites, a compressed results file
+     * @param fileName Name of the file to write
+     * @param xDimension Width of the metapopulation
+     * @param yDimension Height of the metapopulation
+     * @param mantissaBits Number of mantissa bits of each kill rate to keep,
+     *                     from 1 to 52, where 52 keeps kill rates exact
+     */
+    public CompressedResults(
+        String fileName,
+        int xDimension,
+        int yDimension,
+        int mantissaBits
+    ) {
+        if (mantissaBits < 1 || mantissaBits > 52) {
+            throw new IllegalArgumentException(
+                "Kill rates can keep 1 to 52 mantissa bits, not " + mantissaBits);
+        }
+        this.yDimension = yDimension;
+        this.mantissaMask = -1L << (52 - mantissaBits);
+        this.states = new SeriesState[xDimension * yDimension];
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fileName), 1 << 16));
+            writeBits(MAGIC, 32);
+            writeBits(xDimension, 32);
+            writeBits(yDimension, 32);
+        } catch (IOException writeException) {
+            throw new IllegalStateException(
+                "Could not open " + fileName, writeException);
+        }
+    }
+
+    @Override
+    public void record(int generation, int x, int y, Locale locale) {
+        int index = x * yDimension + y;
+        try {
+            if (index == lastIndex + 1) {
+                writeBits(TAG_NEXT, 1);
+            } else {
+                writeBits(TAG_INDEX, 2);
+                writeBits(index, 32);
+            }
+            lastIndex = index;
+
+            if (states[index] == null) {
+                states[index] = new SeriesState();
+            }
+            SeriesState state = states[index];
+            writeDeltaOfDelta(state, 0, generation);
+            writeDeltaOfDelta(state, 1, locale.getLoggedPrey());
+            writeDeltaOfDelta(state, 2, locale.getLoggedPreds());
+            writeXor(state, 0, locale.getLoggedMaxKillRate());
+            writeXor(state, 1, locale.getLoggedAvgKillRate());
+        } catch (IOException writeException) {
+            throw new IllegalStateException(
+                "Could not write compressed results", writeException);
+        }
+    }
+
+    @Override
+    public void endGeneration(int generation) {
+        try {
+            writeBits(TAG_END_GENERATION, 3);
+        } catch (IOException writeException) {
+            throw new IllegalStateException(
+                "Could not write compressed results", writeException);
+        }
+        lastIndex = -1;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeBits(TAG_END_STREAM, 3);
+            if (bitCount > 0) {
+                writeBits(0, 64 - bitCount);
+            }
+            out.close();
+        } catch (IOException closeException) {
+            closeException.printStackTrace();
+        }
+    }
+
+    private void writeDeltaOfDelta(SeriesState state, int series, long value)
+            throws IOException {
+        long delta = value - state.previous[series];
+        long deltaOfDelta = delta - state.delta[series];
+        state.previous[series] = value;
+        state.delta[series] = delta;
+
+        if (deltaOfDelta == 0) {
+            writeBits(0b0, 1);
+        } else if (deltaOfDelta >= -64 && deltaOfDelta < 64) {
+            writeBits(0b10, 2);
+            writeBits(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -2048 && deltaOfDelta < 2048) {
+            writeBits(0b110, 3);
+            writeBits(deltaOfDelta, 12);
+        } else if (deltaOfDelta >= -524288 && deltaOfDelta < 524288) {
+            writeBits(0b1110, 4);
+            writeBits(deltaOfDelta, 20);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeXor(SeriesState state, int series, double value)
+            throws IOException {
+        long bits = round(Double.doubleToRawLongBits(value));
+        long xor = bits ^ state.previousBits[series];
+        state.previousBits[series] = bits;
+        if (xor == 0) {
+            writeBits(0b0, 1);
+            return;
+        }
+
+        int leading = Long.numberOfLeadingZeros(xor);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (leading >= state.leading[series] && trailing >= state.trailing[series]) {
+            // Reuse the previous window
+            writeBits(0b10, 2);
+            int length = 64 - state.leading[series] - state.trailing[series];
+            writeBits(xor >>> state.trailing[series], length);
+        } else {
+            int length = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 6);
+            writeBits(length - 1, 6);
+            writeBits(xor >>> trailing, length);
+            state.leading[series] = leading;
+            state.trailing[series] = trailing;
+        }
+    }
+
+    /**
+     * Rounds a double's bits to the kept number of mantissa bits
+     * @param bits Raw bits of the double
+     * @return Bits of the nearest double with only the kept mantissa bits
+     */
+    private long round(long bits) {
+        if (mantissaMask == -1L) {
+            return bits;
+        }
+        // A carry out of the mantissa correctly bumps the exponent
+        long half = (~mantissaMask + 1) >>> 1;
+        return (bits + half) & mantissaMask;
+    }
+
+    /**
+     * Appends the lowest bits of a value to the stream
+     * @param value Bits to write, right-aligned
+     * @param count Number of bits, from 1 to 64
+     */
+    private void writeBits(long value, int count) throws IOException {
+        if (count < 64) {
+            value &= (1L << count) - 1;
+        }
+        int free = 64 - bitCount;
+        if (count < free) {
+            bitBuffer |= value << (free - count);
+            bitCount += count;
+            return;
+        }
+
+        // Fill the buffer, write it out, and keep whatever didn't fit
+        int overflow = count - free;
+        bitBuffer |= value >>> overflow;
+        out.writeLong(bitBuffer);
+        bitBuffer = overflow == 0 ? 0 : value << (64 - overflow);
+        bitCount = overflow;
+    }
+}
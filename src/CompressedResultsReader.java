@@ -0,0 +1,244 @@
+/**
+ * Decodes a file written by CompressedResults and exports it as .csv, with
+ * one row per locale per generation in the order they were recorded.  See
+ * CompressedResults for the file layout.
+ *
+ * Usage:  java CompressedResultsReader [-locales] results-file [csv-file]
+ *
+ * Without a csv-file the rows are printed to the console.  With -locales the
+ * rows are grouped into one block per locale instead, in the same layout as
+ * the testName.csv file Main writes without compressed output, so that
+ * graphParse.py and the Excel templates can read it.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+public class CompressedResultsReader {
+    private DataInputStream in;
+    private int xDimension;
+    private int yDimension;
+    private CompressedResults.SeriesState[] states;
+
+    // Most recently decoded record
+    private int index = -1;
+    private long generation;
+    private long prey;
+    private long preds;
+    private double maxKillRate;
+    private double avgKillRate;
+
+    // Bits read but not yet used, aligned to the most significant end
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+
+    /**
+     * Opens a compressed results file and reads its header
+     * @param fileName Name of the file to read
+     * @throws IOException If the file can't be read or isn't compressed results
+     */
+    public CompressedResultsReader(String fileName) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(fileName), 1 << 16));
+        if ((int)readBits(32) != CompressedResults.MAGIC) {
+            in.close();
+            throw new IOException(fileName + " is not a compressed results file");
+        }
+        this.xDimension = (int)readBits(32);
+        this.yDimension = (int)readBits(32);
+        this.states = new CompressedResults.SeriesState[xDimension * yDimension];
+    }
+
+    /**
+     * Decodes every record, writing each as a line of .csv
+     * @param writer Destination for the rows
+     * @param lineEnding Line ending for the rows
+     * @throws IOException If the file is cut short or can't be written
+     */
+    public void export(Writer writer, String lineEnding) throws IOException {
+        writer.write("Generation, X, Y, Prey, Preds, Max KR, Avg KR" + lineEnding);
+        StringBuilder line = new StringBuilder(128);
+        while (readRecord()) {
+            line.setLength(0);
+            line.append(generation).append(',')
+                .append(index / yDimension).append(',')
+                .append(index % yDimension).append(',')
+                .append(prey).append(',')
+                .append(preds).append(',')
+                .append(maxKillRate).append(',')
+                .append(avgKillRate).append(lineEnding);
+            writer.append(line);
+        }
+        in.close();
+    }
+
+    /**
+     * Decodes every record, then writes one block of rows per locale in the
+     * layout of Main's uncompressed results file.  Every locale's rows are
+     * held in memory until the whole file has been read.
+     * @param writer Destination for the blocks
+     * @param lineEnding Line ending for the locale headers; rows end in "\n"
+     *                   as they do in locale logs
+     * @throws IOException If the file is cut short or can't be written
+     */
+    public void exportByLocale(Writer writer, String lineEnding) throws IOException {
+        StringBuilder[] logs = new StringBuilder[xDimension * yDimension];
+        for (int i = 0; i < logs.length; i++) {
+            logs[i] = new StringBuilder("Generation, Prey, Preds, Max KR, Avg KR \n");
+        }
+        while (readRecord()) {
+            logs[index].append(generation).append(',')
+                .append(prey).append(',')
+                .append(preds).append(',')
+                .append(maxKillRate).append(',')
+                .append(avgKillRate).append('\n');
+        }
+        in.close();
+
+        for (int i = 0; i < logs.length; i++) {
+            writer.write("Locale " + (i / yDimension) + " " + (i % yDimension)
+                + ", " + lineEnding);
+            writer.append(logs[i]);
+        }
+    }
+
+    /**
+     * Decodes the next record into the current record fields
+     * @return False once the end of the stream is reached
+     * @throws IOException If the file is cut short
+     */
+    private boolean readRecord() throws IOException {
+        while (true) {
+            if (readBits(1) == CompressedResults.TAG_NEXT) {
+                index++;
+            } else if (readBits(1) == 0) {
+                index = (int)readBits(32);
+            } else if (readBits(1) == 0) {
+                index = -1;
+                continue;
+            } else {
+                return false;
+            }
+
+            if (states[index] == null) {
+                states[index] = new CompressedResults.SeriesState();
+            }
+            CompressedResults.SeriesState state = states[index];
+            generation = readDeltaOfDelta(state, 0);
+            prey = readDeltaOfDelta(state, 1);
+            preds = readDeltaOfDelta(state, 2);
+            maxKillRate = readXor(state, 0);
+            avgKillRate = readXor(state, 1);
+            return true;
+        }
+    }
+
+    private long readDeltaOfDelta(CompressedResults.SeriesState state, int series)
+            throws IOException {
+        long deltaOfDelta;
+        if (readBits(1) == 0) {
+            deltaOfDelta = 0;
+        } else if (readBits(1) == 0) {
+            deltaOfDelta = readSigned(7);
+        } else if (readBits(1) == 0) {
+            deltaOfDelta = readSigned(12);
+        } else if (readBits(1) == 0) {
+            deltaOfDelta = readSigned(20);
+        } else {
+            deltaOfDelta = readBits(64);
+        }
+        state.delta[series] += deltaOfDelta;
+        state.previous[series] += state.delta[series];
+        return state.previous[series];
+    }
+
+    private double readXor(CompressedResults.SeriesState state, int series)
+            throws IOException {
+        if (readBits(1) == 1) {
+            if (readBits(1) == 1) {
+                state.leading[series] = (int)readBits(6);
+                int length = (int)readBits(6) + 1;
+                state.trailing[series] = 64 - state.leading[series] - length;
+            }
+            int length = 64 - state.leading[series] - state.trailing[series];
+            long xor = readBits(length) << state.trailing[series];
+            state.previousBits[series] ^= xor;
+        }
+        return Double.longBitsToDouble(state.previousBits[series]);
+    }
+
+    /**
+     * Reads a two's complement value of the given width
+     */
+    private long readSigned(int count) throws IOException {
+        return readBits(count) << (64 - count) >> (64 - count);
+    }
+
+    /**
+     * Reads the next bits from the stream
+     * @param count Number of bits, from 1 to 64
+     * @return Bits read, right-aligned
+     */
+    private long readBits(int count) throws IOException {
+        if (bitCount == 0) {
+            refill();
+        }
+        if (count <= bitCount) {
+            long value = bitBuffer >>> (64 - count);
+            bitBuffer = count == 64 ? 0 : bitBuffer << count;
+            bitCount -= count;
+            return value;
+        }
+
+        // Take what's left, then the rest from the next word
+        int rest = count - bitCount;
+        long high = bitBuffer >>> (64 - bitCount);
+        refill();
+        long value = (high << rest) | (bitBuffer >>> (64 - rest));
+        bitBuffer <<= rest;
+        bitCount -= rest;
+        return value;
+    }
+
+    private void refill() throws IOException {
+        try {
+            bitBuffer = in.readLong();
+        } catch (EOFException eof) {
+            throw new IOException("Compressed results file is cut short", eof);
+        }
+        bitCount = 64;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean byLocale = args.length > 0 && args[0].equals("-locales");
+        if (byLocale) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length < 1) {
+            System.out.println("Usage:  java CompressedResultsReader "
+                + "[-locales] results-file [csv-file]");
+            return;
+        }
+        CompressedResultsReader reader = new CompressedResultsReader(args[0]);
+        Writer writer = args.length > 1
+            ? new BufferedWriter(new FileWriter(args[1]), 1 << 16)
+            : new BufferedWriter(new OutputStreamWriter(System.out));
+        if (byLocale) {
+            reader.exportByLocale(writer, System.lineSeparator());
+        } else {
+            reader.export(writer, System.lineSeparator());
+        }
+        writer.flush();
+        if (args.length > 1) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/**
+ * Checks that a faster way of running the simulation produces the same
+ * population dynamics as the standard way.
+ *
+ * A faster hunt, reproduction, or migration routine usually draws random
+ * numbers in a different order, so two modes can't be compared run for run.
+ * Instead, the harness runs a reference mode and a candidate mode over many
+ * random seeds and, for every generation, compares the distribution of
+ * metapopulation-wide statistics between the two modes using two-sample
+ * Kolmogorov-Smirnov and Anderson-Darling tests.  A configuration passes if
+ * no test rejects at the chosen significance level after a Bonferroni
+ * correction for the number of tests.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongFunction;
+
+public class EquivalenceHarness {
+    /*
+     * Statistics sampled from the whole metapopulation after each generation
+     */
+    private static final String[] METRICS = {
+        "Prey", "Preds", "Max KR", "Avg KR"
+    };
+
+    /*
+     * Anderson-Darling critical values for two samples (Scholz and Stephens,
+     * 1987), paired with their significance levels
+     */
+    private static final double[] AD_CRITICAL = {
+        0.325, 1.226, 1.961, 2.718, 3.752, 4.592, 6.546
+    };
+    private static final double[] AD_SIGNIFICANCE = {
+        0.25, 0.1, 0.05, 0.025, 0.01, 0.005, 0.001
+    };
+
+    private int numberOfSeeds;
+    private int numberOfGenerations;
+    private double significance;
+    private long masterSeed;
+
+    /**
+     * Constructor for a harness
+     * @param numberOfSeeds Number of runs of each mode per configuration
+     * @param numberOfGenerations Length of each run
+     * @param significance Family-wise significance level for a configuration
+     * @param masterSeed Seed from which every run's seed is drawn
+     */
+    public EquivalenceHarness(
+        int numberOfSeeds,
+        int numberOfGenerations,
+        double significance,
+        long masterSeed
+    ) {
+        this.numberOfSeeds = numberOfSeeds;
+        this.numberOfGenerations = numberOfGenerations;
+        this.significance = significance;
+        this.masterSeed = masterSeed;
+    }
+
+    /**
+     * Runs both modes of a configuration and compares them
+     * @param name Name of the configuration, used in the report
+     * @param reference Builds a metapopulation in the trusted mode from a seed
+     * @param candidate Builds a metapopulation in the mode under test
+     * @return One line report stating whether the configuration passed
+     */
+    public String compare(
+        String name,
+        LongFunction<Metapopulation> reference,
+        LongFunction<Metapopulation> candidate
+    ) {
+        return compare(name, reference, candidate, true);
+    }
+
+    /**
+     * Runs both modes of a configuration and compares them, optionally with
+     * the Anderson-Darling test alone
+     * @param name Name of the configuration, used in the report
+     * @param reference Builds a metapopulation in the trusted mode from a seed
+     * @param candidate Builds a metapopulation in the mode under test
+     * @param useKolmogorovSmirnov Whether to run the Kolmogorov-Smirnov test
+     *                             as well as the Anderson-Darling test
+     * @return One line report stating whether the configuration passed
+     */
+    public String compare(
+        String name,
+        LongFunction<Metapopulation> reference,
+        LongFunction<Metapopulation> candidate,
+        boolean useKolmogorovSmirnov
+    ) {
+        // The two modes get independent seeds so that their samples are
+        // independent, as the tests assume
+        Random seeds = new Random(masterSeed);
+        double[][][] refSamples = sample(reference, seeds);
+        double[][][] candSamples = sample(candidate, seeds);
+
+        int testsPerMetric = useKolmogorovSmirnov ? 2 : 1;
+        int numTests = testsPerMetric * METRICS.length * numberOfGenerations;
+        double threshold = significance / numTests;
+        double worstP = 1.0;
+        String worst = "none";
+        boolean worstExtrapolated = false;
+        for (int gen = 0; gen < numberOfGenerations; gen++) {
+            for (int metric = 0; metric < METRICS.length; metric++) {
+                double[] ref = refSamples[gen][metric];
+                double[] cand = candSamples[gen][metric];
+                double ksP = useKolmogorovSmirnov
+                    ? kolmogorovSmirnovP(ref, cand) : 1.0;
+                double adP = andersonDarlingP(ref, cand);
+                if (ksP < worstP) {
+                    worstP = ksP;
+                    worst = "KS " + METRICS[metric] + " gen " + (gen + 1);
+                    worstExtrapolated = false;
+                }
+                if (adP < worstP) {
+                    worstP = adP;
+                    worst = "AD " + METRICS[metric] + " gen " + (gen + 1);
+                    worstExtrapolated =
+                        adP < AD_SIGNIFICANCE[AD_SIGNIFICANCE.length - 1];
+                }
+            }
+        }
+
+        // Past the end of the Anderson-Darling table, p-values are only
+        // extrapolated, so just their order of magnitude is worth reporting
+        String verdict = worstP >= threshold ? "PASS" : "FAIL";
+        String minP = worstExtrapolated
+            ? String.format("~%.0e (approximate, beyond the AD table)", worstP)
+            : String.valueOf(worstP);
+        return verdict + "  " + name
+            + "  (" + numTests + " tests, min p " + minP
+            + " at " + worst + ", threshold " + threshold + ")";
+    }
+
+    /**
+     * Runs one mode over every seed, recording metapopulation-wide statistics
+     * @param mode Builds a metapopulation from a seed
+     * @param seeds Source of run seeds
+     * @return Samples indexed by generation, metric, then run
+     */
+    private double[][][] sample(LongFunction<Metapopulation> mode, Random seeds) {
+        long[] runSeeds = new long[numberOfSeeds];
+        for (int i = 0; i < numberOfSeeds; i++) {
+            runSeeds[i] = seeds.nextLong();
+        }
+
+        double[][][] samples =
+            new double[numberOfGenerations][METRICS.length][numberOfSeeds];
+
+        // Runs are independent, so spread them across all cores
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int i = 0; i < numberOfSeeds; i++) {
+                final int run = i;
+                runs.add(pool.submit(() -> {
+                    Metapopulation meta = mode.apply(runSeeds[run]);
+                    for (int gen = 0; gen < numberOfGenerations; gen++) {
+                        meta.simulateGeneration();
+                        record(meta, samples[gen], run);
+                    }
+                }));
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } catch (InterruptedException | ExecutionException runException) {
+            throw new IllegalStateException("Simulation run failed", runException);
+        } finally {
+            pool.shutdown();
+        }
+        return samples;
+    }
+
+    /**
+     * Stores one generation's statistics for one run
+     */
+    private static void record(Metapopulation meta, double[][] metrics, int run) {
+        double prey = 0;
+        double preds = 0;
+        double maxKillRate = 0;
+        double sumKillRates = 0;
+        for (int x = 0; x < meta.getxDimension(); x++) {
+            for (int y = 0; y < meta.getyDimension(); y++) {
+                Locale locale = meta.getLocaleAt(x, y);
+                int numPreds = locale.getNumPreds();
+                prey += locale.getNumPrey();
+                preds += numPreds;
+                maxKillRate = Math.max(maxKillRate, locale.getMaxKillRate());
+                sumKillRates += locale.getAvgKillRate() * numPreds;
+            }
+        }
+        metrics[0][run] = prey;
+        metrics[1][run] = preds;
+        metrics[2][run] = maxKillRate;
+        metrics[3][run] = preds > 0 ? sumKillRates / preds : 0;
+    }
+
+    /**
+     * Two-sample Kolmogorov-Smirnov test using the asymptotic distribution of
+     * the statistic
+     * @return p-value for the hypothesis that both samples share a distribution
+     */
+    static double kolmogorovSmirnovP(double[] first, double[] second) {
+        double[] a = first.clone();
+        double[] b = second.clone();
+        Arrays.sort(a);
+        Arrays.sort(b);
+
+        // Walk both sorted samples together, stepping past ties in both at
+        // once so that tied values never count as a difference
+        int i = 0;
+        int j = 0;
+        double d = 0;
+        while (i < a.length && j < b.length) {
+            double value = Math.min(a[i], b[j]);
+            while (i < a.length && a[i] == value) {
+                i++;
+            }
+            while (j < b.length && b[j] == value) {
+                j++;
+            }
+            d = Math.max(d, Math.abs((double)i / a.length - (double)j / b.length));
+        }
+        if (d == 0) {
+            return 1.0;
+        }
+
+        double en = Math.sqrt((double)a.length * b.length / (a.length + b.length));
+        double lambda = (en + 0.12 + 0.11 / en) * d;
+
+        // Kolmogorov distribution tail
+        double sum = 0;
+        double sign = 1;
+        for (int k = 1; k <= 100; k++) {
+            double term = sign * Math.exp(-2.0 * k * k * lambda * lambda);
+            sum += term;
+            if (Math.abs(term) < 1e-12) {
+                break;
+            }
+            sign = -sign;
+        }
+        return Math.max(0.0, Math.min(1.0, 2 * sum));
+    }
+
+    /**
+     * Two-sample Anderson-Darling test (Scholz and Stephens' midrank version,
+     * which allows ties).  The p-value is interpolated from the table of
+     * critical values.  Above the largest tabled value it is extrapolated
+     * along the log-linear trend of the table's last two entries, so that the
+     * test can still reject at the tiny levels a Bonferroni correction asks
+     * for.
+     * @return p-value for the hypothesis that both samples share a distribution
+     */
+    static double andersonDarlingP(double[] first, double[] second) {
+        double[][] samples = {first.clone(), second.clone()};
+        int k = samples.length;
+        int n = first.length + second.length;
+        double[] pooled = new double[n];
+        System.arraycopy(first, 0, pooled, 0, first.length);
+        System.arraycopy(second, 0, pooled, first.length, second.length);
+        Arrays.sort(pooled);
+        for (double[] sample : samples) {
+            Arrays.sort(sample);
+        }
+        double[] distinct = Arrays.stream(pooled).distinct().toArray();
+        if (distinct.length < 2) {
+            return 1.0;
+        }
+
+        // Statistic
+        double a2kn = 0;
+        for (double[] sample : samples) {
+            double inner = 0;
+            for (double z : distinct) {
+                int left = lowerBound(pooled, z);
+                double lj = upperBound(pooled, z) - left;
+                double bj = left + lj / 2;
+                int sampleRight = upperBound(sample, z);
+                double fij = sampleRight - lowerBound(sample, z);
+                double mij = sampleRight - fij / 2;
+                double diff = n * mij - bj * sample.length;
+                inner += lj / n * diff * diff / (bj * (n - bj) - n * lj / 4);
+            }
+            a2kn += inner / sample.length;
+        }
+        a2kn *= (n - 1.0) / n;
+
+        // Standardize using the statistic's variance
+        double bigH = 0;
+        for (double[] sample : samples) {
+            bigH += 1.0 / sample.length;
+        }
+        double h = 0;
+        for (int i = 1; i < n; i++) {
+            h += 1.0 / i;
+        }
+        double g = 0;
+        double tail = 0;
+        for (int i = n - 1; i >= 2; i--) {
+            tail += 1.0 / i;
+            g += tail / (n - i + 1);
+        }
+        double a = (4 * g - 6) * (k - 1) + (10 - 6 * g) * bigH;
+        double b = (2 * g - 4) * k * k + 8 * h * k
+            + (2 * g - 14 * h - 4) * bigH - 8 * h + 4 * g - 6;
+        double c = (6 * h + 2 * g - 2) * k * k + (4 * h - 4 * g + 6) * k
+            + (2 * h - 6) * bigH + 4 * h;
+        double d = (2 * h + 6) * k * k - 4 * h * k;
+        double sigmaSq = (a * n * n * n + b * n * n + c * n + d)
+            / ((n - 1.0) * (n - 2.0) * (n - 3.0));
+        double standardized = (a2kn - (k - 1)) / Math.sqrt(sigmaSq);
+
+        // Interpolate log significance between tabled critical values, or
+        // extrapolate past the last one
+        if (standardized <= AD_CRITICAL[0]) {
+            return AD_SIGNIFICANCE[0];
+        }
+        int last = AD_CRITICAL.length - 1;
+        int i = 1;
+        while (i < last && AD_CRITICAL[i] < standardized) {
+            i++;
+        }
+        double t = (standardized - AD_CRITICAL[i - 1])
+            / (AD_CRITICAL[i] - AD_CRITICAL[i - 1]);
+        double logP = Math.log(AD_SIGNIFICANCE[i - 1]) * (1 - t)
+            + Math.log(AD_SIGNIFICANCE[i]) * t;
+        return Math.min(Math.exp(logP), AD_SIGNIFICANCE[0]);
+    }
+
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int upperBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    ///
+    /// Validation Runs
+    ///
+    ////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Builds a small metapopulation with Main's default parameters, scaled
+     * down so that many seeds can be run quickly.  useArena selects off-heap
+     * predator storage, meanField, if not null, enables mean-field hunting,
+     * and scheduler, if not null, simulates locales in parallel.
+     */
+    private static Metapopulation buildMetapopulation(
+        long seed,
+        boolean useArena,
+        MeanFieldThresholds meanField,
+        LocaleScheduler scheduler
+    ) {
+        return buildMetapopulation(seed, .001, useArena, meanField, scheduler);
+    }
+
+    /*
+     * Same as above, with starting kill rates drawn from a range of width
+     * .004 starting at lowerKillRate
+     */
+    private static Metapopulation buildMetapopulation(
+        long seed,
+        double lowerKillRate,
+        boolean useArena,
+        MeanFieldThresholds meanField,
+        LocaleScheduler scheduler
+    ) {
+        Random random = new Random(seed);
+        PopulationStart popStart = new PopulationStart(
+            50, 2000, lowerKillRate, lowerKillRate + .004);
+        MigrationPattern migration = new MigrationPattern(0.3, .01, 0.01);
+        Generation generation = new Generation(
+            1.3, .005, 10000, 50, .3, .01, random, meanField);
+        Metapopulation meta = new Metapopulation(
+            2, 2, popStart, migration, random, generation);
+        if (useArena) {
+            meta.usePopulationArena(new PopulationArena(4, 50));
+        }
+        if (scheduler != null) {
+            meta.useScheduler(scheduler);
+        }
+        return meta;
+    }
+
+    public static void main(String[] args) {
+        EquivalenceHarness harness = new EquivalenceHarness(60, 30, 0.05, 1L);
+        System.out.println(harness.compare(
+            "off-heap arena",
+            seed -> buildMetapopulation(seed, false, null, null),
+            seed -> buildMetapopulation(seed, true, null, null)
+        ));
+        System.out.println(harness.compare(
+            "mean-field hunting",
+            seed -> buildMetapopulation(seed, false, null, null),
+            seed -> buildMetapopulation(seed, false,
+                new MeanFieldThresholds(5000, 30, 2000, 15), null)
+        ));
+        // Runs happen concurrently, so each harness thread reuses a scheduler
+        // of its own, and all of them are shut down afterwards
+        List<LocaleScheduler> schedulers =
+            Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<LocaleScheduler> threadScheduler = ThreadLocal.withInitial(() -> {
+            LocaleScheduler scheduler = new LocaleScheduler(2);
+            schedulers.add(scheduler);
+            return scheduler;
+        });
+        try {
+            System.out.println(harness.compare(
+                "parallel scheduler",
+                seed -> buildMetapopulation(seed, false, null, null),
+                seed -> buildMetapopulation(seed, false, null, threadScheduler.get())
+            ));
+        } finally {
+            for (LocaleScheduler scheduler : schedulers) {
+                scheduler.shutdown();
+            }
+        }
+
+        // Sanity check:  a model that really is different must be caught by
+        // the Anderson-Darling test on its own
+        System.out.println(harness.compare(
+            "shifted kill rate, AD only (should FAIL)",
+            seed -> buildMetapopulation(seed, false, null, null),
+            seed -> buildMetapopulation(seed, .002, false, null, null),
+            false
+        ));
+    }
+}
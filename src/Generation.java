@@ -9,6 +9,7 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Collections;
 import java.util.Random;
@@ -22,6 +23,38 @@ public class Generation{
     private double predMortality;
     private double mutRate;
 
+    /*
+     * Population sizes at which locales switch to and from mean-field hunting.
+     * Null if every locale should always be simulated individual by individual.
+     */
+    private MeanFieldThresholds meanField;
+
+    /*
+     * How parents are chosen for new predators, and how many predators compete
+     * for each parent slot under the TOURNAMENT scheme
+     */
+    private MatingScheme matingScheme = MatingScheme.RANDOM_PAIRS;
+    private int tournamentSize = 2;
+
+    /*
+     * Chance for a predator of each age to die at the end of a generation,
+     * rolled separately for every predator, or null if predators don't age
+     * and all die at the flat predMortality rate.
+     * Predators die of old age once they outlive the schedule.  When longevity
+     * is expressed, each predator's chance of dying is divided by its
+     * longevity.
+     */
+    private double[] mortalitySchedule;
+
+    /*
+     * Starting value of each trait, or NaN for traits that stay unexpressed,
+     * and whether each trait mutates.  The kill rate is always expressed and
+     * always mutates.
+     */
+    private double[] startingTraits = new double[Trait.COUNT];
+    private boolean[] evolvingTraits = new boolean[Trait.COUNT];
+    private boolean expressesTraits = false;
+
     /**
      * Constructor for a generation object
      * @param preyGrowthRate Exponential factor for prey reproduction
@@ -41,6 +74,34 @@ public class Generation{
         double predMortality, 
         double mutRate, 
         Random random
+    ) {
+        this(preyGrowthRate, predGrowthRate, preyCap, predGrowthRateCap,
+            predMortality, mutRate, random, null);
+    }
+
+    /**
+     * Constructor for a generation object that lets large locales switch to a
+     * mean-field approximation of hunting
+     * @param preyGrowthRate Exponential factor for prey reproduction
+     * @param predGrowthRate Conversion factor between predator kills and 
+     *                       predator kids
+     * @param preyCap Maximum number to which a prey population can grow
+     * @param predGrowthRateCap Maximum number of children that can be produced
+     *                          for each predator in a population
+     * @param predMortality Chance for each predator to die at end of generation
+     * @param mutRate Mutation rate for predators
+     * @param meanField Population thresholds for mean-field hunting, or null
+     *                  to disable it
+     */
+    public Generation(
+        double preyGrowthRate, 
+        double predGrowthRate, 
+        int preyCap, 
+        int predGrowthRateCap, 
+        double predMortality, 
+        double mutRate, 
+        Random random,
+        MeanFieldThresholds meanField
     ) {
         this.preyGrowth = preyGrowthRate;
         this.predGrowth = predGrowthRate;
@@ -49,6 +110,49 @@ public class Generation{
         this.predMortality = predMortality;
         this.mutRate = mutRate;
         this.random = random;
+        this.meanField = meanField;
+        Arrays.fill(this.startingTraits, Double.NaN);
+        this.evolvingTraits[Trait.KILL_RATE.ordinal()] = true;
+    }
+
+    /**
+     * Changes how parents are chosen for new predators
+     * @param matingScheme Scheme for choosing parents
+     * @param tournamentSize Number of predators drawn for each parent under
+     *                       the TOURNAMENT scheme
+     */
+    public void setMatingScheme(MatingScheme matingScheme, int tournamentSize) {
+        this.matingScheme = matingScheme;
+        this.tournamentSize = tournamentSize;
+    }
+
+    /**
+     * Gives predators ages, so that how likely a predator is to die depends on
+     * how old it is instead of on the flat mortality rate
+     * @param mortalitySchedule Chance of dying at each age, starting with
+     *                          newborns; its length is the maximum lifespan
+     * @param evolveLongevity Whether predators inherit and mutate a longevity
+     *                        that scales down their chance of dying
+     */
+    public void setAgeStructure(double[] mortalitySchedule, boolean evolveLongevity) {
+        this.mortalitySchedule = mortalitySchedule;
+        if (evolveLongevity) {
+            setTrait(Trait.LONGEVITY, 1.0, true);
+        }
+    }
+
+    /**
+     * Expresses a trait in every predator, starting from a given value.
+     * Predators that don't have the trait yet are given the starting value
+     * the next time they hunt, and pass it on to their children from then on.
+     * @param trait Trait to express, other than the kill rate
+     * @param startingValue Value given to predators that don't have the trait
+     * @param evolve Whether the trait mutates in children
+     */
+    public void setTrait(Trait trait, double startingValue, boolean evolve) {
+        this.startingTraits[trait.ordinal()] = startingValue;
+        this.evolvingTraits[trait.ordinal()] = evolve;
+        this.expressesTraits = true;
     }
 
     /**
@@ -57,10 +161,29 @@ public class Generation{
      * @param locale Locale to be updated
      */
     public void runGeneration(Locale locale) {
+        // Locales simulated in parallel carry their own random so that they
+        // don't contend for, or depend on the order of, a shared one
+        Random random = locale.getRandom();
+        if (random == null) {
+            random = this.random;
+        }
+
+        // Decide whether the locale is big enough for mean-field hunting
+        if (this.meanField != null) {
+            updateMode(locale);
+        }
+
         // Have predators hunt prey, setting kills for the preds and decreasing
         // the prey population accordingly
-        for (Predator pred : locale.getPredList()){
-            hunt(pred, locale);
+        for (Predator pred : locale.getPredators()){
+            if (expressesTraits) {
+                express(pred);
+            }
+            if (locale.isMeanField()) {
+                huntMeanField(pred, locale);
+            } else {
+                hunt(pred, locale, random);
+            }
         }
 
         // Grow the prey population up to a maximum of its growth cap
@@ -69,10 +192,14 @@ public class Generation{
         locale.setNumPrey(newPreyPop);
 
         // Allow predators to reproduce, then kill part of them at random.
-        List<Predator> predators = locale.getPredList();
-        predators = makeKids(predators);
-        predators = killPreds(predators);
-        locale.setPredList(predators);
+        if (mortalitySchedule != null) {
+            breedAndAge(locale, random);
+        } else {
+            List<Predator> predators = locale.getPredList();
+            predators = makeKids(predators, random);
+            predators = killPreds(predators, random);
+            locale.setPredList(predators);
+        }
 
         // Tell the locale to add a new entry to its demographic stats.
         locale.updateLog();
@@ -83,10 +210,12 @@ public class Generation{
      * population
      * @param pred Predator on the hunt
      * @param locale Predator's home locale where it will be hunting
+     * @param random Random for use in math
      */
-    private void hunt(Predator pred, Locale locale) {
+    private void hunt(Predator pred, Locale locale, Random random) {
         int killCount = 0;
-        for (int i = 0; i < locale.getNumPrey(); i++){
+        int killCap = killCap(pred);
+        for (int i = 0; i < locale.getNumPrey() && killCount < killCap; i++){
             if (random.nextFloat() <= pred.getKillRate()){
                 killCount++;
             }
@@ -95,16 +224,118 @@ public class Generation{
         pred.setKills(killCount);
     }
 
+    /**
+     * Deterministic version of hunt() for very large populations.  Instead of
+     * rolling for every prey, the predator makes exactly its expected number
+     * of kills.  With thousands of prey, the random spread around that number
+     * is small next to the number itself.
+     * @param pred Predator on the hunt
+     * @param locale Predator's home locale where it will be hunting
+     */
+    private void huntMeanField(Predator pred, Locale locale) {
+        int numPrey = locale.getNumPrey();
+        int killCount = (int)Math.round(pred.getKillRate() * numPrey);
+        killCount = Math.max(0, Math.min(killCount, numPrey));
+        killCount = Math.min(killCount, killCap(pred));
+        locale.reduceBasePrey(killCount);
+        pred.setKills(killCount);
+    }
+
+    /**
+     * Gives a predator the starting value of every expressed trait it doesn't
+     * have yet
+     * @param pred Predator to fill in
+     */
+    private void express(Predator pred) {
+        for (int trait = 0; trait < Trait.COUNT; trait++) {
+            if (Double.isNaN(pred.getTrait(trait))) {
+                pred.setTrait(trait, startingTraits[trait]);
+            }
+        }
+    }
+
+    /**
+     * Finds the most prey a predator can kill in a generation.  Both ways of
+     * hunting use this, so an evolved cap is rounded down the same way in
+     * each.
+     * @param pred Predator on the hunt
+     * @return The predator's kill cap rounded down, or Integer.MAX_VALUE if it
+     *         has none
+     */
+    private int killCap(Predator pred) {
+        double killCap = pred.getTrait(Trait.KILL_CAP);
+        if (Double.isNaN(killCap)) {
+            return Integer.MAX_VALUE;
+        }
+        return (int)Math.max(0, Math.floor(killCap));
+    }
+
+    /**
+     * Finds the most children a predator can have in a generation
+     * @param pred Predator to breed
+     * @return The predator's brood size, or the generation's cap if it has none
+     */
+    private int broodCap(Predator pred) {
+        double broodSize = pred.getTrait(Trait.BROOD_SIZE);
+        if (Double.isNaN(broodSize)) {
+            return predGrowthCap;
+        }
+        return (int)Math.max(0, Math.floor(broodSize));
+    }
+
+    /**
+     * Switches a locale into mean-field mode once both of its populations are
+     * large, and back to individual-based mode once either becomes small
+     * enough for chance to matter again.
+     *
+     * Only hunting changes between modes.  Hunting is the one step whose cost
+     * grows with prey times predators; the number of births and deaths is
+     * already a deterministic function of kills and population size.
+     * @param locale Locale to check
+     */
+    private void updateMode(Locale locale) {
+        int numPrey = locale.getNumPrey();
+        int numPreds = locale.getNumPreds();
+        if (!locale.isMeanField()) {
+            if (numPrey >= meanField.getEnterPrey()
+                    && numPreds >= meanField.getEnterPreds()) {
+                locale.setMeanField(true);
+            }
+        } else if (numPrey < meanField.getExitPrey()
+                || numPreds < meanField.getExitPreds()) {
+            locale.setMeanField(false);
+        }
+    }
+
     /**
      * Takes a population of predators and allows them to breed based on their 
      * kill rates from the last generation.
      * Combines fitness evaluation with reproduction, crossover, and mutation.
      * @param predators List of predators to be bred.
+     * @param random Random for use in math
      * @return Modified list of predators including the new generation
      */
-    private List<Predator> makeKids(List<Predator> predators) {
+    private List<Predator> makeKids(List<Predator> predators, Random random) {
+        switch (matingScheme) {
+            case FITNESS_PROPORTIONAL:
+            case TOURNAMENT:
+                return makeSelectedKids(predators, random);
+            case TRUNCATION:
+                // Predators that didn't kill anything starve before breeding
+                List<Predator> fed = new ArrayList<>(predators.size());
+                for (Predator pred : predators) {
+                    if (pred.getKills() > 0) {
+                        fed.add(pred);
+                    }
+                }
+                predators = fed;
+                break;
+            default:
+                break;
+        }
+
         // Randomize the predator list before assigning mating pairs
-        Collections.shuffle(predators, this.random);
+        Collections.shuffle(predators, random);
 
         List<Predator> kids = new ArrayList<>();
         Predator pred1;
@@ -119,28 +350,21 @@ public class Generation{
             int pairFitness = pred1.getKills() + pred2.getKills();
             pairFitness = (int)Math.min(
                 Math.floor(pairFitness * predGrowth), 
-                (2 * predGrowthCap)
+                (broodCap(pred1) + broodCap(pred2))
             );
 
             for (int kidsMade = 0; kidsMade < pairFitness; kidsMade++) {
-                // Kid killRate is a randomly-weighted average of parents' KRs
-                float crossingPoint = this.random.nextFloat();
-                double firstParentGenes = crossingPoint * pred1.getKillRate();
-                double secondParentGenes = 
-                    (1 - crossingPoint) * pred2.getKillRate();
-                double kidKillRate = firstParentGenes + secondParentGenes;
-
-                Predator kid = new Predator(kidKillRate);
-                kids.add(kid);
+                float crossingPoint = random.nextFloat();
+                kids.add(crossover(pred1, pred2, crossingPoint));
             }
         }
         // If there is an odd number of predators in the input population, the 
         // last reproduces without a mate, creating clones of itself.
         if (predsBred < predators.size()){
             Predator oddPred = predators.get(predsBred);
-            int soloFitness = Math.min(oddPred.getKills(), predGrowthCap);
+            int soloFitness = Math.min(oddPred.getKills(), broodCap(oddPred));
             for (int kidsMade = 0; kidsMade < soloFitness; kidsMade++){
-                Predator kid = new Predator(oddPred.getKillRate());
+                Predator kid = new Predator(oddPred);
                 kids.add(kid);
             }
         }
@@ -148,7 +372,7 @@ public class Generation{
         // Each new predator is mutated before being added to the population.
         for (int mutated = 0; mutated < kids.size(); mutated++) {
             Predator kid = kids.remove(mutated);
-            kids.add(mutated, mutate(kid));
+            kids.add(mutated, mutate(kid, random));
         }
 
         kids.addAll(predators);
@@ -156,17 +380,179 @@ public class Generation{
     }
 
     /**
-     * Allows a predator's kill rate to be increased or decreased by a 
-     * proportion from 0 to mutRate
+     * Breeds a population by drawing two parents for every child, either in
+     * proportion to kills or by tournament.  The population as a whole has as
+     * many children as its total kills allow, so the growth rate is the same
+     * as with random pairs; only who gets to be a parent changes.
+     *
+     * Every child counts against the brood cap of both its parents, and a
+     * predator that reaches its cap is no longer drawn.  A predator only
+     * mates with itself when a few draws in a row fail to find anyone else,
+     * which happens when it holds nearly all of the remaining kills; such a
+     * child counts against its cap once.
+     * @param predators List of predators to be bred.
+     * @param random Random for use in math
+     * @return Modified list of predators including the new generation
+     */
+    private List<Predator> makeSelectedKids(List<Predator> predators, Random random) {
+        int numPreds = predators.size();
+        int[] kills = new int[numPreds];
+        int[] broodLeft = new int[numPreds];
+        long totalKills = 0;
+        long totalBroodCap = 0;
+        for (int i = 0; i < numPreds; i++) {
+            kills[i] = predators.get(i).getKills();
+            broodLeft[i] = broodCap(predators.get(i));
+            totalKills += kills[i];
+            totalBroodCap += broodLeft[i];
+        }
+        if (totalKills == 0) {
+            return new ArrayList<>(predators);
+        }
+
+        long numKids = Math.min(
+            (long)Math.floor(totalKills * predGrowth),
+            totalBroodCap
+        );
+
+        // Predators that can't have more children are drawn with no weight
+        // under FITNESS_PROPORTIONAL, and redrawn under TOURNAMENT
+        int[] weights = new int[numPreds];
+        long openWeight = 0;
+        int openPreds = 0;
+        for (int i = 0; i < numPreds; i++) {
+            if (broodLeft[i] > 0) {
+                weights[i] = kills[i];
+                openWeight += weights[i];
+                openPreds++;
+            }
+        }
+
+        // Built once per generation, and again only when a parent fills up,
+        // so most draws are constant time
+        boolean proportional = matingScheme == MatingScheme.FITNESS_PROPORTIONAL;
+        AliasTable table = null;
+
+        List<Predator> kids = new ArrayList<>((int)numKids + numPreds);
+        for (long kidsMade = 0; kidsMade < numKids; kidsMade++) {
+            if (proportional ? openWeight == 0 : openPreds == 0) {
+                break;
+            }
+            if (proportional && table == null) {
+                table = new AliasTable(weights);
+            }
+            int first = selectParent(table, kills, broodLeft, random);
+            int second = selectParent(table, kills, broodLeft, random);
+
+            // Try a few times for a distinct mate, but allow selfing when one
+            // predator holds nearly all the kills
+            for (int retry = 0; second == first && retry < 8; retry++) {
+                second = selectParent(table, kills, broodLeft, random);
+            }
+
+            Predator pred1 = predators.get(first);
+            Predator pred2 = predators.get(second);
+            float crossingPoint = random.nextFloat();
+            kids.add(mutate(crossover(pred1, pred2, crossingPoint), random));
+
+            broodLeft[first]--;
+            if (second != first) {
+                broodLeft[second]--;
+            }
+            if (broodLeft[first] == 0 || broodLeft[second] == 0) {
+                openWeight = 0;
+                openPreds = 0;
+                for (int i = 0; i < numPreds; i++) {
+                    if (broodLeft[i] > 0) {
+                        openWeight += weights[i];
+                        openPreds++;
+                    } else {
+                        weights[i] = 0;
+                    }
+                }
+                table = null;
+            }
+        }
+
+        kids.addAll(predators);
+        return kids;
+    }
+
+    /**
+     * Chooses a single parent by index among the predators that can still
+     * have children
+     * @param table Alias table over the open predators' kills, or null to
+     *              hold a tournament
+     * @param kills Each predator's kills
+     * @param broodLeft Number of children each predator can still have
+     * @param random Random for use in math
+     * @return Index of the chosen parent
+     */
+    private int selectParent(AliasTable table, int[] kills, int[] broodLeft,
+            Random random) {
+        if (table != null) {
+            return table.sample(random);
+        }
+        int best = drawOpen(broodLeft, random);
+        for (int i = 1; i < tournamentSize; i++) {
+            int challenger = drawOpen(broodLeft, random);
+            if (kills[challenger] > kills[best]) {
+                best = challenger;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Draws a tournament entrant uniformly from the predators that can still
+     * have children.  At least one must be able to.
+     */
+    private int drawOpen(int[] broodLeft, Random random) {
+        int pred;
+        do {
+            pred = random.nextInt(broodLeft.length);
+        } while (broodLeft[pred] <= 0);
+        return pred;
+    }
+
+    /**
+     * Makes a child whose every trait is the same randomly-weighted average of
+     * its parents' traits
+     * @param pred1 First parent
+     * @param pred2 Second parent
+     * @param crossingPoint Weight of the first parent's genes
+     * @return New predator
+     */
+    private Predator crossover(Predator pred1, Predator pred2, float crossingPoint) {
+        Predator kid = new Predator(crossingPoint * pred1.getKillRate()
+            + (1 - crossingPoint) * pred2.getKillRate());
+        // A trait either parent lacks stays unexpressed in the child
+        int genomeLength = Math.min(pred1.getGenomeLength(), pred2.getGenomeLength());
+        for (int trait = 1; trait < genomeLength; trait++) {
+            kid.setTrait(trait, crossingPoint * pred1.getTrait(trait)
+                + (1 - crossingPoint) * pred2.getTrait(trait));
+        }
+        return kid;
+    }
+
+    /**
+     * Allows each of a predator's evolving traits to be increased or
+     * decreased by a proportion from 0 to mutRate
      * @param pred Predator to be mutated
+     * @param random Random for use in math
      * @return Mutated version of the predator
      */
-    private Predator mutate (Predator pred) {
-        Double increase = this.random.nextDouble() * mutRate;
-        if (this.random.nextBoolean()) {
-            increase = -1 * increase;
+    private Predator mutate (Predator pred, Random random) {
+        for (int trait = 0; trait < Trait.COUNT; trait++) {
+            if (!evolvingTraits[trait]) {
+                continue;
+            }
+            double increase = random.nextDouble() * mutRate;
+            if (random.nextBoolean()) {
+                increase = -1 * increase;
+            }
+            pred.setTrait(trait, pred.getTrait(trait) * (1 + increase));
         }
-        pred.setKillRate(pred.getKillRate() * (1 + increase));
         return pred;
     }
 
@@ -175,11 +561,12 @@ public class Generation{
      * rate, representing death through factors such as old age, disease, and
      * accident.
      * @param predators Predator population to be culled
+     * @param random Random for use in math
      * @return Culled predator population
      */
-    private List<Predator> killPreds (List<Predator> predators) {
+    private List<Predator> killPreds (List<Predator> predators, Random random) {
         // Shuffle to make sure we're killing at random
-        Collections.shuffle(predators, this.random);
+        Collections.shuffle(predators, random);
 
         // Round cutoff down to allow a cutoff of 0
         int cutoff = predators.size() - 
@@ -187,4 +574,43 @@ public class Generation{
         predators = predators.subList(0, cutoff);
         return predators;
     }
+
+    /**
+     * Age-structured version of reproduction and death.  Newborns join the
+     * youngest cohort, each cohort loses predators at its own rate from the
+     * mortality schedule, and then the whole population ages by a generation.
+     * Aging only rotates the locale's ring of cohorts, so its cost doesn't
+     * grow with the number of predators.
+     * @param locale Locale whose predators breed and die
+     * @param random Random for use in math
+     */
+    private void breedAndAge(Locale locale, Random random) {
+        AgeCohorts cohorts = locale.getCohorts(mortalitySchedule.length);
+        if (matingScheme == MatingScheme.TRUNCATION) {
+            cohorts.removeIf(pred -> pred.getKills() == 0);
+        }
+
+        // makeKids returns the kids ahead of their parents
+        List<Predator> parents = cohorts.flatten();
+        List<Predator> bred = makeKids(parents, random);
+        for (Predator kid : bred.subList(0, bred.size() - parents.size())) {
+            cohorts.add(kid, 0);
+        }
+
+        // Every predator rolls for its own death, so small cohorts lose on
+        // average the same share as large ones instead of at least one
+        // predator each
+        boolean longevity = !Double.isNaN(startingTraits[Trait.LONGEVITY.ordinal()]);
+        for (int age = 0; age < mortalitySchedule.length; age++) {
+            double deathRate = mortalitySchedule[age];
+            if (longevity) {
+                cohorts.removeIf(age, pred -> random.nextDouble()
+                    < Math.min(1.0, deathRate / pred.getTrait(Trait.LONGEVITY)));
+            } else {
+                cohorts.removeIf(age, pred -> random.nextDouble() < deathRate);
+            }
+        }
+
+        cohorts.age();
+    }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 // import java.util.Collections;
 import java.util.List;
 import java.util.Random;
@@ -14,8 +15,76 @@ public class Locale{
     private int numPrey;
     private int generation;
 
+    // When attached to an arena, predators can be parked off-heap between
+    // generations.  predList is null and the cohorts are empty while they are
+    // parked.
+    private PopulationArena arena;
+    private int arenaIndex;
+    private boolean parked = false;
+
+    // Random used only by this locale when locales run in parallel, or null
+    // to share the generation's random
+    private Random random;
+
+    // Predators grouped by age, or null if the locale's predators don't age.
+    // When present, the cohorts hold the population and predList is null.
+    private AgeCohorts cohorts;
+
+    // Whether hunting is currently simulated with the mean-field approximation
+    private boolean meanField = false;
+
+    // Headers for full and decimated logs
+    private static final String LOG_HEADER =
+            "Generation, Prey, Preds, Max KR, Avg KR \n";
+    private static final String WINDOW_LOG_HEADER = "Generation, "
+            + "Prey Mean, Prey Min, Prey Max, "
+            + "Preds Mean, Preds Min, Preds Max, "
+            + "Max KR Mean, Max KR Min, Max KR Max, "
+            + "Avg KR Mean, Avg KR Min, Avg KR Max \n";
+
     // Locale log starts with a header
-    private String localeLog = "Generation, Prey, Preds, Max KR, Avg KR \n";
+    private String localeLog;
+
+    // Whether rows are added to the locale log.  When results are streamed
+    // elsewhere, the log is left empty so no text is built on this thread.
+    private boolean keepLog = true;
+
+    // Statistics from the most recent log snapshot, kept so that results can
+    // be published without another pass over the predators
+    private int loggedPrey;
+    private int loggedPreds;
+    private double loggedMaxKillRate;
+    private double loggedAvgKillRate;
+
+    // Mean, min and max of every trait in the most recent log snapshot, over
+    // the predators that express it.  NaN if no predator expresses the trait.
+    private double[] loggedTraitMeans = new double[Trait.COUNT];
+    private double[] loggedTraitMins = new double[Trait.COUNT];
+    private double[] loggedTraitMaxes = new double[Trait.COUNT];
+
+    // Statistics of every expressed trait other than the kill rate, which is
+    // already in the main log.  Summarized over the same windows as the main
+    // log: the mean of each generation's mean, the lowest min and the highest
+    // max, over the generations in which the trait was expressed.
+    private String traitLog = "";
+    private int traitWindowStart;
+    private int traitWindowCount;
+    private int[] traitWindowGens = new int[Trait.COUNT];
+    private double[] traitWindowSum = new double[Trait.COUNT];
+    private double[] traitWindowMin = new double[Trait.COUNT];
+    private double[] traitWindowMax = new double[Trait.COUNT];
+
+    // Decimated logs write one row per window of this many generations,
+    // summarizing the window as it goes instead of keeping every row
+    private int logWindow;
+    private int windowStart;
+    private int windowCount;
+    private double[] windowSum = new double[4];
+    private double[] windowMin = new double[4];
+    private double[] windowMax = new double[4];
+
+    // Switches between individual-based and mean-field simulation
+    private String transitionLog = "";
 
     /**
      * Constructor for a new locale
@@ -24,7 +93,24 @@ public class Locale{
      * @param predKillRate Starting predator kill rate
      */
     public Locale(int predPop, int preyPop, double predKillRate){
+        this(predPop, preyPop, predKillRate, 1);
+    }
+
+    /**
+     * Constructor for a new locale with a decimated log
+     * @param predPop Starting predator population size
+     * @param preyPop Starting prey population size
+     * @param predKillRate Starting predator kill rate
+     * @param logWindow Number of generations summarized by each log row
+     */
+    public Locale(int predPop, int preyPop, double predKillRate, int logWindow){
+        if (logWindow < 1) {
+            throw new IllegalArgumentException(
+                "Log windows must be at least 1 generation, not " + logWindow);
+        }
         this.numPrey = preyPop;
+        this.logWindow = logWindow;
+        this.localeLog = logWindow > 1 ? WINDOW_LOG_HEADER : LOG_HEADER;
         this.predList = new ArrayList<Predator>(predPop);
         this.generation = 0;
         for (int i = 0; i < predPop; i++) {
@@ -35,10 +121,29 @@ public class Locale{
     }
 
     /**
-     * Returns the predator population as a list
+     * Returns the predator population as a list.  If the predators age, the
+     * list is a new copy of the cohorts, youngest first, and changing it does
+     * not change the population.
      * @return Predator population in list form
      */
     public List<Predator> getPredList(){
+        unpark();
+        if (cohorts != null) {
+            return cohorts.flatten();
+        }
+        return predList;
+    }
+
+    /**
+     * Returns the predator population for iteration, without copying the
+     * cohorts if the predators age
+     * @return Every predator, in getPredList() order
+     */
+    public Iterable<Predator> getPredators() {
+        unpark();
+        if (cohorts != null) {
+            return cohorts;
+        }
         return predList;
     }
 
@@ -47,28 +152,167 @@ public class Locale{
      * @return Number of predators
      */
     public int getNumPreds() {
+        if (isParked()) {
+            return arena.size(arenaIndex);
+        }
+        if (cohorts != null) {
+            return cohorts.size();
+        }
         return predList.size();
     }
 
     /**
-     * Setter for the predator population
+     * Setter for the predator population of a locale whose predators don't
+     * age.  Aging populations are changed through getCohorts() instead.
      * @param newPreds List of predators
      */
     public void setPredList(List<Predator> newPreds) {
+        if (cohorts != null) {
+            throw new IllegalStateException(
+                "Predators that age are kept in cohorts");
+        }
         predList = newPreds;
     }
 
+    /**
+     * Returns the predator population grouped by age, starting age structure
+     * with every current predator as a newborn the first time it is called
+     * @param maxAge Number of generations a predator can live
+     * @return Predator cohorts
+     */
+    public AgeCohorts getCohorts(int maxAge) {
+        unpark();
+        if (cohorts == null) {
+            cohorts = new AgeCohorts(maxAge);
+            for (Predator pred : predList) {
+                cohorts.add(pred, 0);
+            }
+            predList = null;
+        }
+        return cohorts;
+    }
+
+    /**
+     * Gives the locale a slab of an arena in which to park its predators
+     * @param arena Arena shared by the metapopulation
+     * @param index Index of this locale's slab within the arena
+     */
+    public void attachArena(PopulationArena arena, int index) {
+        this.arena = arena;
+        this.arenaIndex = index;
+    }
+
+    /**
+     * Moves the predator population off the heap and into the locale's arena
+     * slab.  Does nothing if the locale has no arena or is already parked.
+     */
+    public void park() {
+        if (arena != null && !parked) {
+            if (cohorts != null) {
+                arena.store(arenaIndex, cohorts.flatten(), cohorts.flattenAges());
+                cohorts.clear();
+            } else {
+                arena.store(arenaIndex, predList);
+                predList = null;
+            }
+            parked = true;
+        }
+    }
+
+    /**
+     * Brings a parked predator population back onto the heap.  Does nothing
+     * if the locale is not parked.
+     */
+    public void unpark() {
+        if (isParked()) {
+            List<Predator> predators = arena.load(arenaIndex);
+            if (cohorts != null) {
+                cohorts.addAll(predators, arena.loadAges(arenaIndex));
+            } else {
+                predList = predators;
+            }
+            parked = false;
+        }
+    }
+
+    /**
+     * Checks whether the predator population currently lives in the arena
+     * @return True if the predators are parked
+     */
+    public boolean isParked() {
+        return parked;
+    }
+
+    /**
+     * Getter for the locale's own random
+     * @return Random used when simulating this locale, or null if the locale
+     *         shares the generation's random
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Gives the locale its own random, allowing it to be simulated at the same
+     * time as other locales
+     * @param random Random for use in math
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Checks whether the locale is being simulated with the mean-field
+     * approximation
+     * @return True if in mean-field mode
+     */
+    public boolean isMeanField() {
+        return meanField;
+    }
+
+    /**
+     * Switches the locale between individual-based and mean-field simulation,
+     * recording the switch in the transition log
+     * @param meanField True to use the mean-field approximation
+     */
+    public void setMeanField(boolean meanField) {
+        if (this.meanField != meanField) {
+            transitionLog += generation + ","
+                    + (meanField ? "mean-field" : "individual") + ","
+                    + numPrey + ","
+                    + getNumPreds() + "\n";
+        }
+        this.meanField = meanField;
+    }
+
+    /**
+     * Returns every switch between simulation modes, one per line, as the
+     * generation, the new mode, and the populations that triggered it
+     * @return Transition log, empty if the locale never switched
+     */
+    public String getTransitionLog() {
+        return transitionLog;
+    }
+
     /**
      * Finds the average kill rate of the predator population
      * @return Average kill rate
      */
     public double getAvgKillRate() {
+        if (isParked()) {
+            int numPreds = arena.size(arenaIndex);
+            double sumKillRates = 0.0;
+            for (int i = 0; i < numPreds; i++) {
+                sumKillRates += arena.getKillRate(arenaIndex, i);
+            }
+            return numPreds > 0 ? sumKillRates / numPreds : 0;
+        }
         double sumKillRates = 0.0;
-        for (Predator pred : predList) {
+        for (Predator pred : getPredators()) {
             sumKillRates += pred.getKillRate();
         }
-        if (predList.size() > 0) {
-            return sumKillRates / predList.size();
+        if (getNumPreds() > 0) {
+            return sumKillRates / getNumPreds();
         } else {
             return 0;
         }
@@ -80,7 +324,14 @@ public class Locale{
      */
     public double getMaxKillRate() {
         double maxKillRate = 0.0;
-        for (Predator pred : predList) {
+        if (isParked()) {
+            for (int i = 0; i < arena.size(arenaIndex); i++) {
+                maxKillRate = Math.max(maxKillRate,
+                    arena.getKillRate(arenaIndex, i));
+            }
+            return maxKillRate;
+        }
+        for (Predator pred : getPredators()) {
             if (pred.getKillRate() > maxKillRate) {
                 maxKillRate = pred.getKillRate();
             }
@@ -120,8 +371,11 @@ public class Locale{
      * @return Popped predator
      */
     public Predator popPred(int index){
-        Predator result = predList.remove(index);
-        return result;
+        unpark();
+        if (cohorts != null) {
+            return cohorts.remove(index);
+        }
+        return predList.remove(index);
     }
 
     /**
@@ -129,7 +383,42 @@ public class Locale{
      * @param newPred Predator to be added
      */
     public void addPred(Predator newPred){
-        predList.add(newPred);
+        addPred(newPred, 0);
+    }
+
+    /**
+     * Adds a predator of a given age to the locale's predator list.  The age is
+     * ignored if the locale's predators don't age.
+     * @param newPred Predator to be added
+     * @param age Age of the predator
+     */
+    public void addPred(Predator newPred, int age) {
+        unpark();
+        if (cohorts != null) {
+            cohorts.add(newPred, age);
+        } else {
+            predList.add(newPred);
+        }
+    }
+
+    /**
+     * Moves a predator to another locale, keeping its age
+     * @param index Index of the predator to move
+     * @param dest Locale the predator moves to
+     */
+    public void movePred(int index, Locale dest) {
+        unpark();
+        int age = cohorts != null ? cohorts.ageOf(index) : 0;
+        dest.addPred(popPred(index), age);
+    }
+
+    /**
+     * Turns the in-memory text log on or off.  With the log off, snapshots
+     * are still taken for results listeners, but no rows are formatted.
+     * @param keepLog Whether to add rows to the log
+     */
+    public void setKeepLog(boolean keepLog) {
+        this.keepLog = keepLog;
     }
 
     /**
@@ -137,15 +426,229 @@ public class Locale{
      * increments the locale's generation number.
      */
     public void updateLog() {
+        loggedPrey = numPrey;
+        loggedPreds = getNumPreds();
+        snapshotTraits();
+        int killRate = Trait.KILL_RATE.ordinal();
+        loggedMaxKillRate = loggedPreds > 0 ? loggedTraitMaxes[killRate] : 0.0;
+        loggedAvgKillRate = loggedPreds > 0 ? loggedTraitMeans[killRate] : 0;
+        addToTraitWindow();
+        if (!keepLog) {
+            generation ++;
+            return;
+        }
+        if (logWindow > 1) {
+            addToWindow();
+            generation ++;
+            return;
+        }
         String newLine = generation + ","
-                + numPrey + ","
-                + predList.size() + ","
-                + getMaxKillRate() + ","
-                + getAvgKillRate() + "\n";
+                + loggedPrey + ","
+                + loggedPreds + ","
+                + loggedMaxKillRate + ","
+                + loggedAvgKillRate + "\n";
         localeLog += newLine;
         generation ++;
     }
 
+    /**
+     * Finds the mean, min and max of every trait in a single pass over the
+     * predators
+     */
+    private void snapshotTraits() {
+        double[] sums = new double[Trait.COUNT];
+        int[] counts = new int[Trait.COUNT];
+        Arrays.fill(loggedTraitMins, Double.POSITIVE_INFINITY);
+        Arrays.fill(loggedTraitMaxes, Double.NEGATIVE_INFINITY);
+        if (isParked()) {
+            Trait[] traits = Trait.values();
+            int numPreds = getNumPreds();
+            for (int i = 0; i < numPreds; i++) {
+                for (int trait = 0; trait < Trait.COUNT; trait++) {
+                    addToSnapshot(trait,
+                        arena.getTrait(arenaIndex, i, traits[trait]), sums, counts);
+                }
+            }
+        } else {
+            for (Predator pred : getPredators()) {
+                for (int trait = 0; trait < pred.getGenomeLength(); trait++) {
+                    addToSnapshot(trait, pred.getTrait(trait), sums, counts);
+                }
+            }
+        }
+        for (int trait = 0; trait < Trait.COUNT; trait++) {
+            if (counts[trait] == 0) {
+                loggedTraitMeans[trait] = Double.NaN;
+                loggedTraitMins[trait] = Double.NaN;
+                loggedTraitMaxes[trait] = Double.NaN;
+            } else {
+                loggedTraitMeans[trait] = sums[trait] / counts[trait];
+            }
+        }
+    }
+
+    private void addToSnapshot(int trait, double value, double[] sums, int[] counts) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        sums[trait] += value;
+        counts[trait]++;
+        loggedTraitMins[trait] = Math.min(loggedTraitMins[trait], value);
+        loggedTraitMaxes[trait] = Math.max(loggedTraitMaxes[trait], value);
+    }
+
+    /**
+     * Folds the current trait statistics into the trait log window, writing
+     * a row per expressed trait when the window is full
+     */
+    private void addToTraitWindow() {
+        if (traitWindowCount == 0) {
+            traitWindowStart = generation;
+            Arrays.fill(traitWindowGens, 0);
+            Arrays.fill(traitWindowSum, 0);
+            Arrays.fill(traitWindowMin, Double.POSITIVE_INFINITY);
+            Arrays.fill(traitWindowMax, Double.NEGATIVE_INFINITY);
+        }
+        for (int trait = Trait.KILL_RATE.ordinal() + 1; trait < Trait.COUNT; trait++) {
+            if (Double.isNaN(loggedTraitMeans[trait])) {
+                continue;
+            }
+            traitWindowGens[trait]++;
+            traitWindowSum[trait] += loggedTraitMeans[trait];
+            traitWindowMin[trait] = Math.min(traitWindowMin[trait], loggedTraitMins[trait]);
+            traitWindowMax[trait] = Math.max(traitWindowMax[trait], loggedTraitMaxes[trait]);
+        }
+        traitWindowCount++;
+        if (traitWindowCount == logWindow) {
+            writeTraitWindow();
+        }
+    }
+
+    /**
+     * Adds a row to the trait log for each trait expressed during the current
+     * window, and starts a new window
+     */
+    private void writeTraitWindow() {
+        Trait[] traits = Trait.values();
+        for (int trait = 0; trait < Trait.COUNT; trait++) {
+            if (traitWindowGens[trait] == 0) {
+                continue;
+            }
+            traitLog += traitWindowStart + ","
+                    + traits[trait].label() + ","
+                    + (traitWindowSum[trait] / traitWindowGens[trait]) + ","
+                    + traitWindowMin[trait] + ","
+                    + traitWindowMax[trait] + "\n";
+        }
+        traitWindowCount = 0;
+    }
+
+    /**
+     * Returns the statistics of every expressed trait other than the kill
+     * rate, one line per trait per log window (a single generation unless
+     * the log is decimated), as the window's first generation, the trait,
+     * and its mean, min and max over the window
+     * @return Trait log, empty if no other traits were expressed
+     */
+    public String getTraitLog() {
+        return traitLog;
+    }
+
+    /**
+     * Getter for the mean of a trait in the most recent log snapshot
+     * @param trait Trait to look up
+     * @return Mean over the predators expressing the trait, or NaN if none do
+     */
+    public double getLoggedTraitMean(Trait trait) {
+        return loggedTraitMeans[trait.ordinal()];
+    }
+
+    /**
+     * Getter for the number of prey in the most recent log snapshot
+     * @return Number of prey when the log was last updated
+     */
+    public int getLoggedPrey() {
+        return loggedPrey;
+    }
+
+    /**
+     * Getter for the number of predators in the most recent log snapshot
+     * @return Number of predators when the log was last updated
+     */
+    public int getLoggedPreds() {
+        return loggedPreds;
+    }
+
+    /**
+     * Getter for the maximum kill rate in the most recent log snapshot
+     * @return Maximum kill rate when the log was last updated
+     */
+    public double getLoggedMaxKillRate() {
+        return loggedMaxKillRate;
+    }
+
+    /**
+     * Getter for the average kill rate in the most recent log snapshot
+     * @return Average kill rate when the log was last updated
+     */
+    public double getLoggedAvgKillRate() {
+        return loggedAvgKillRate;
+    }
+
+    /**
+     * Writes out a partly filled log window.  Should be called once the
+     * simulation ends so that the last few generations aren't lost.
+     */
+    public void flushLog() {
+        if (windowCount > 0) {
+            writeWindow();
+        }
+        if (traitWindowCount > 0) {
+            writeTraitWindow();
+        }
+    }
+
+    /**
+     * Folds the current populations into the running mean, min and max of the
+     * log window, writing a row when the window is full
+     */
+    private void addToWindow() {
+        double[] values = {
+            loggedPrey, loggedPreds, loggedMaxKillRate, loggedAvgKillRate
+        };
+        if (windowCount == 0) {
+            windowStart = generation;
+            for (int i = 0; i < values.length; i++) {
+                windowSum[i] = 0;
+                windowMin[i] = values[i];
+                windowMax[i] = values[i];
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            windowSum[i] += values[i];
+            windowMin[i] = Math.min(windowMin[i], values[i]);
+            windowMax[i] = Math.max(windowMax[i], values[i]);
+        }
+        windowCount++;
+        if (windowCount == logWindow) {
+            writeWindow();
+        }
+    }
+
+    /**
+     * Adds a row summarizing the current log window and starts a new window
+     */
+    private void writeWindow() {
+        String newLine = "" + windowStart;
+        for (int i = 0; i < windowSum.length; i++) {
+            newLine += "," + (windowSum[i] / windowCount)
+                    + "," + windowMin[i]
+                    + "," + windowMax[i];
+        }
+        localeLog += newLine + "\n";
+        windowCount = 0;
+    }
+
     /**
      * Returns the locale's log of all generations
      * @return
@@ -0,0 +1,163 @@
+/**
+ * Runs a generation on many locales at once.
+ *
+ * The cost of simulating a locale varies enormously: an extinct locale costs
+ * nothing, while hunting in a dense one costs roughly prey times predators.
+ * Splitting the grid evenly between threads would leave most of them idle
+ * while one works through a crowded patch.  Instead, the scheduler estimates
+ * each locale's cost from its current populations, which are the result of the
+ * previous generation, and hands locales out largest first to a work-stealing
+ * pool.  Expensive locales start early, and the cheap ones fill the gaps at
+ * the end.
+ *
+ * After each generation the scheduler records how evenly the work was spread
+ * across its threads.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class LocaleScheduler {
+    private ForkJoinPool pool;
+    private int numThreads;
+
+    // Time each worker spent simulating locales this generation.  Keyed by
+    // thread, since pool indices aren't guaranteed to run from 0 to
+    // numThreads - 1.
+    private ConcurrentHashMap<Thread, AtomicLong> busyNanos =
+        new ConcurrentHashMap<>();
+
+    // Load balance log starts with a header
+    private String balanceLog = "Generation, Locales, Est Cost, "
+            + "Wall ms, Max Busy ms, Mean Busy ms, Imbalance, Efficiency \n";
+    private int generation = 0;
+
+    /**
+     * Constructor for a scheduler
+     * @param numThreads Number of locales to simulate at the same time
+     */
+    public LocaleScheduler(int numThreads) {
+        this.numThreads = numThreads;
+        // FIFO mode makes every worker take the oldest, and therefore most
+        // expensive, task first, whether it forked that task or stole it
+        this.pool = new ForkJoinPool(
+            numThreads,
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+            null,
+            true
+        );
+    }
+
+    /**
+     * Applies some work to every locale, most expensive locales first, and
+     * waits for all of it to finish
+     * @param locales Locales to work on
+     * @param work Work to do on each locale, which must only touch that locale
+     */
+    public void run(List<Locale> locales, Consumer<Locale> work) {
+        // Estimate costs from the populations the last generation left behind
+        int numLocales = locales.size();
+        long[] costs = new long[numLocales];
+        Integer[] order = new Integer[numLocales];
+        long totalCost = 0;
+        for (int i = 0; i < numLocales; i++) {
+            costs[i] = estimateCost(locales.get(i));
+            order[i] = i;
+            totalCost += costs[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(costs[b], costs[a]));
+
+        busyNanos.clear();
+        long start = System.nanoTime();
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(numLocales);
+                for (int index : order) {
+                    Locale locale = locales.get(index);
+                    tasks.add(ForkJoinTask.adapt(() -> timed(work, locale)).fork());
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            }
+        });
+        long wall = System.nanoTime() - start;
+
+        logBalance(numLocales, totalCost, wall);
+    }
+
+    /**
+     * Returns the load balance log with one row per generation.  Imbalance is
+     * the busiest thread's time over the mean thread's time, so 1.0 means the
+     * work was spread perfectly.  Efficiency is the fraction of the available
+     * thread time that was spent simulating.
+     * @return Load balance log
+     */
+    public String getBalanceLog() {
+        return balanceLog;
+    }
+
+    /**
+     * Stops the scheduler's threads
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Rough cost of simulating a locale, in random draws.  Hunting dominates:
+     * every predator rolls against every prey unless the locale is in
+     * mean-field mode.
+     */
+    private static long estimateCost(Locale locale) {
+        long preds = locale.getNumPreds();
+        long prey = locale.getNumPrey();
+        if (locale.isMeanField()) {
+            return preds + 1;
+        }
+        return prey * preds + preds + 1;
+    }
+
+    private void timed(Consumer<Locale> work, Locale locale) {
+        long start = System.nanoTime();
+        work.accept(locale);
+        long elapsed = System.nanoTime() - start;
+
+        busyNanos.computeIfAbsent(Thread.currentThread(), thread -> new AtomicLong())
+            .addAndGet(elapsed);
+    }
+
+    private void logBalance(int numLocales, long totalCost, long wall) {
+        long maxBusy = 0;
+        long sumBusy = 0;
+        for (AtomicLong workerBusy : busyNanos.values()) {
+            long busy = workerBusy.get();
+            maxBusy = Math.max(maxBusy, busy);
+            sumBusy += busy;
+        }
+        // Workers that never got a locale were idle the whole time.  The
+        // pool may briefly add a spare worker while others wait on joins.
+        int workers = Math.max(numThreads, busyNanos.size());
+        double meanBusy = (double)sumBusy / workers;
+        double imbalance = meanBusy > 0 ? maxBusy / meanBusy : 1.0;
+        double efficiency = wall > 0 ? sumBusy / ((double)wall * workers) : 1.0;
+
+        generation++;
+        balanceLog += generation + ","
+                + numLocales + ","
+                + totalCost + ","
+                + (wall / 1e6) + ","
+                + (maxBusy / 1e6) + ","
+                + (meanBusy / 1e6) + ","
+                + imbalance + ","
+                + efficiency + "\n";
+    }
+}
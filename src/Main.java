@@ -1,6 +1,8 @@
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 
 public class Main{
@@ -73,6 +75,24 @@ public class Main{
     private double individualEmigrationRate = .01;
     private double preyMigration = 0.01;
 
+    /*
+     * Set prey diffusion.
+     *
+     * With usePreyDiffusion turned on, prey no longer move with the migration
+     * events above.  Instead, every generation each locale sends a fixed
+     * fraction of its prey to each of its four neighbors, all locales at once.
+     * Fractions are rounded down, and no prey are lost or created.
+     *
+     * diffusionWeights:  Fraction of a locale's prey sent east, north, west
+     *  and south, adding up to at most 1
+     *
+     * parallelDiffusion:  Whether to spread diffusion of large grids over all
+     *  cores.  This doesn't change the results.
+     */
+    private boolean usePreyDiffusion = false;
+    private double[] diffusionWeights = {.0025, .0025, .0025, .0025};
+    private boolean parallelDiffusion = false;
+
     /*
      * Set starting kill rate range for predators.
      * 
@@ -130,6 +150,225 @@ public class Main{
     private int maxChildrenPerPredator = 50;
     private double predMortalityRate = .3;
 
+    /*
+     * Set mate selection.
+     *
+     * matingScheme:  How parents are chosen for new predators.  One of:
+     *  RANDOM_PAIRS - predators are shuffled into pairs, and each pair has
+     *   children according to its combined kills
+     *  FITNESS_PROPORTIONAL - every child's parents are drawn with chances
+     *   proportional to their kills.  Each child counts against both its
+     *   parents' maxChildrenPerPredator (or brood size), and predators at
+     *   their cap are no longer drawn.  A predator mates with itself only
+     *   when it holds nearly all of the kills left and no other mate is
+     *   drawn after several tries.
+     *  TOURNAMENT - every parent is the best hunter out of tournamentSize
+     *   predators drawn at random from those below their cap, with the same
+     *   caps and selfing as FITNESS_PROPORTIONAL
+     *  TRUNCATION - predators with no kills die before breeding, and the rest
+     *   are paired as in RANDOM_PAIRS
+     *
+     * tournamentSize:  Number of predators competing for each parent slot
+     *  under TOURNAMENT
+     */
+    private MatingScheme matingScheme = MatingScheme.RANDOM_PAIRS;
+    private int tournamentSize = 2;
+
+    /*
+     * Set predator aging.
+     *
+     * useAgeStructure:  If true, predators age and die according to
+     *  mortalitySchedule instead of predMortalityRate
+     *
+     * mortalitySchedule:  Chance for each predator of each age to die at the
+     *  end of each generation, starting with newborns, rolled separately for
+     *  every predator.  Predators that outlive the schedule die of old age.
+     *
+     * evolveLongevity:  If true, predators inherit and mutate a longevity that
+     *  divides their chance of dying
+     */
+    private boolean useAgeStructure = false;
+    private double[] mortalitySchedule = {.1, .2, .3, .4, .6, .8};
+    private boolean evolveLongevity = false;
+
+    /*
+     * Set extra predator traits.  Each trait is inherited like the kill rate,
+     * and the mean, min and max of every extra trait are recorded in a
+     * testName_traits.csv file.
+     *
+     * useKillCap:  If true, each predator stops hunting once it has killed
+     *  its kill cap in a generation
+     *
+     * startingKillCap:  Kill cap of the starting predators
+     *
+     * evolveKillCap:  Whether the kill cap mutates along with the kill rate
+     *
+     * useBroodSize:  If true, each predator has its own cap on children in
+     *  place of maxChildrenPerPredator
+     *
+     * startingBroodSize:  Brood size of the starting predators
+     *
+     * evolveBroodSize:  Whether the brood size mutates along with the kill rate
+     */
+    private boolean useKillCap = false;
+    private int startingKillCap = 100;
+    private boolean evolveKillCap = true;
+    private boolean useBroodSize = false;
+    private int startingBroodSize = 50;
+    private boolean evolveBroodSize = true;
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    ///
+    /// Performance Options
+    ///
+    ////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Set off-heap predator storage.
+     *
+     * Large grids can hold more predators than fit comfortably on the Java 
+     * heap.  With useOffHeapArena turned on, each locale's predators are kept
+     * in an off-heap arena between generations and only become Java objects
+     * while that locale is being simulated.  These options don't change the
+     * results of a run.
+     *
+     * useOffHeapArena:  Whether to park predators off the heap
+     *
+     * arenaFile:  File to memory-map the arena onto, allowing the population
+     *  to spill over onto disk.  The file shrinks when the arena is compacted
+     *  and is deleted at the end of the run.  Leave empty to use plain
+     *  off-heap memory.
+     */
+    private boolean useOffHeapArena = false;
+    private String arenaFile = "";
+
+    /*
+     * Set hybrid mean-field simulation.
+     *
+     * In a locale with tens of thousands of prey and thousands of predators,
+     * rolling for every predator against every prey dominates the runtime but
+     * barely changes the outcome.  With useMeanField turned on, such locales
+     * give each predator exactly its expected number of kills instead.  A
+     * locale switches back to rolling individually once its populations are
+     * small enough for chance and extinction to matter.  Each switch is
+     * recorded in a testName_transitions.csv file.
+     *
+     * useMeanField:  Whether locales may switch to mean-field hunting
+     *
+     * meanFieldEnterPrey, meanFieldEnterPreds:  A locale switches to
+     *  mean-field hunting once it has at least this many prey and predators
+     *
+     * meanFieldExitPrey, meanFieldExitPreds:  A locale switches back once it
+     *  has fewer than this many prey or predators
+     */
+    private boolean useMeanField = false;
+    private int meanFieldEnterPrey = 50000;
+    private int meanFieldEnterPreds = 1000;
+    private int meanFieldExitPrey = 20000;
+    private int meanFieldExitPreds = 400;
+
+    /*
+     * Set output decimation.
+     *
+     * A long run on a big grid logs far more generations than a graph can 
+     * show.  With a logWindow above 1, each locale writes one row per window
+     * of that many generations instead of one row per generation.  Each row
+     * holds the window's first generation followed by the mean, min and max
+     * of prey, predators, max kill rate and average kill rate, so that
+     * extinctions and spikes still show up.  The testName_traits.csv file is
+     * summarized over the same windows.  Note that graphParse.py and the
+     * Excel templates expect the undecimated format.  logWindow must be at
+     * least 1.
+     */
+    private int logWindow = 1;
+
+    /*
+     * Set locale initialization.
+     *
+     * By default each locale is only built, predators and all, when the
+     * simulation first reaches it, so a huge grid starts up almost instantly.
+     * With eagerInitialization turned on, every locale is built up front
+     * using all available cores instead.  Results are the same either way.
+     */
+    private boolean eagerInitialization = false;
+
+    /*
+     * Set parallel simulation.
+     *
+     * With numberOfThreads above 1, locales are simulated in parallel.  Each
+     * generation, locales are handed out to a work-stealing pool of threads,
+     * most expensive first, estimating cost from their current populations.
+     * Each locale then draws from its own random, so runs are still
+     * reproducible from the random seed, but won't match a single-threaded
+     * run with the same seed.  How evenly work was spread over the threads is
+     * recorded per generation in a testName_schedule.csv file.
+     */
+    private int numberOfThreads = 1;
+
+    /*
+     * Set live results.
+     *
+     * Normally nothing can be looked at until the run finishes.  If
+     * liveResultsFile is set, every locale's statistics are also written each
+     * generation into a memory-mapped ring file of that name, which other
+     * programs can read while the run is going (for example, 
+     * "java ResultsRingReader ringFile").  The file layout is documented in
+     * ResultsRing.java.
+     *
+     * liveResultsFile:  Name of the ring file, or empty to turn this off
+     *
+     * liveResultsSlots:  Number of records the ring holds before the oldest
+     *  are overwritten, up to about 33 million (2 GiB of 64 byte records)
+     */
+    private String liveResultsFile = "";
+    private int liveResultsSlots = 65536;
+
+    /*
+     * Set asynchronous output.
+     *
+     * With useAsyncOutput turned on, the simulation hands each generation's
+     * results to a separate writer thread instead of doing any output itself.
+     * The writer streams every locale's statistics into the testName.csv
+     * file in batches, one row per locale per generation starting from the
+     * starting populations at generation 0, and prints generation progress
+     * to the console.  Locales then keep no text log, and nothing is written
+     * out at the end of the run.  Note that the file is one flat table with
+     * columns "Generation, X, Y, Prey, Preds, Max KR, Avg KR" rather than
+     * one block per locale, so graphParse.py and the Excel templates can't
+     * read it.  Async output writes every generation, so it can't be
+     * combined with a logWindow above 1.
+     *
+     * asyncOutputCapacity:  Number of records that can wait for the writer
+     *
+     * dropOutputWhenFull:  If the writer falls that far behind, whether to
+     *  throw records away (the simulation never waits) or to wait for the
+     *  writer (nothing is lost)
+     */
+    private boolean useAsyncOutput = false;
+    private int asyncOutputCapacity = 1 << 16;
+    private boolean dropOutputWhenFull = false;
+
+    /*
+     * Set compressed output.
+     *
+     * With useCompressedOutput turned on, every locale's statistics are
+     * streamed into a compact binary testName_results.spz file in place of
+     * the text results in testName.csv.  It can be turned back into the
+     * usual testName.csv layout, one block per locale, with
+     * "java CompressedResultsReader -locales testName_results.spz out.csv",
+     * or into one flat table without "-locales".
+     *
+     * killRatePrecision:  Number of mantissa bits kept for each kill rate,
+     *  from 1 to 52.  The default of 52 stores kill rates exactly, but only
+     *  brings the file to about a quarter of the text, since the low mantissa
+     *  bits are mostly noise.  20 keeps about six significant digits and
+     *  brings the file to about a seventh of the text, and 16 to about a
+     *  tenth; lower it when file size matters more than exact kill rates.
+     */
+    private boolean useCompressedOutput = false;
+    private int killRatePrecision = 52;
+
 
     ////////////////////////////////////////////////////////////////////////////
     ///
@@ -148,6 +387,31 @@ public class Main{
      */
     private Metapopulation meta;
 
+    /*
+     * Off-heap predator storage, if enabled
+     */
+    private PopulationArena arena = null;
+
+    /*
+     * Parallel locale scheduler, if enabled
+     */
+    private LocaleScheduler scheduler = null;
+
+    /*
+     * Live results ring, if enabled
+     */
+    private ResultsRing ring = null;
+
+    /*
+     * Asynchronous output pipeline, if enabled
+     */
+    private OutputPipeline pipeline = null;
+
+    /*
+     * Compressed results file, if enabled
+     */
+    private CompressedResults compressed = null;
+
     /*
      * Writers used in generating output
      */
@@ -167,6 +431,15 @@ public class Main{
         this.randomSeed = random.nextLong();
         random.setSeed(this.randomSeed);
 
+        // Set the right line ending for use in output files
+        String os = System.getProperty("os.name");
+        if(os.contains("Windows")) {
+            this.lineEnding = "\r\n";
+        }
+        else {
+            this.lineEnding = "\n";
+        }
+
         // Use starting population params to construct a PopulationStart data
         // transfer object
         PopulationStart popStart = new PopulationStart(
@@ -184,6 +457,18 @@ public class Main{
             this.preyMigration
         );
 
+        // Use mean-field params to construct a MeanFieldThresholds data
+        // transfer object, if mean-field hunting is enabled
+        MeanFieldThresholds meanField = null;
+        if (this.useMeanField) {
+            meanField = new MeanFieldThresholds(
+                this.meanFieldEnterPrey,
+                this.meanFieldEnterPreds,
+                this.meanFieldExitPrey,
+                this.meanFieldExitPreds
+            );
+        }
+
         // Instantiate a generation
         Generation generation = new Generation(
             this.preyGrowthRate,
@@ -192,8 +477,19 @@ public class Main{
             this.maxChildrenPerPredator,
             this.predMortalityRate,
             this.mutationRate,
-            random
+            random,
+            meanField
         );
+        generation.setMatingScheme(this.matingScheme, this.tournamentSize);
+        if (this.useAgeStructure) {
+            generation.setAgeStructure(this.mortalitySchedule, this.evolveLongevity);
+        }
+        if (this.useKillCap) {
+            generation.setTrait(Trait.KILL_CAP, this.startingKillCap, this.evolveKillCap);
+        }
+        if (this.useBroodSize) {
+            generation.setTrait(Trait.BROOD_SIZE, this.startingBroodSize, this.evolveBroodSize);
+        }
 
         // Instantiate metapopulation
         this.meta = new Metapopulation(
@@ -202,16 +498,77 @@ public class Main{
             popStart,
             migration,
             random,
-            generation
+            generation,
+            this.logWindow
         );
 
-        // Set the right line ending for use in output files
-        String os = System.getProperty("os.name");
-        if(os.contains("Windows")) {
-            this.lineEnding = "\r\n";
+        // Diffuse prey across the whole grid if requested
+        if (this.usePreyDiffusion) {
+            this.meta.usePreyDiffusion(this.diffusionWeights, this.parallelDiffusion);
         }
-        else {
-            this.lineEnding = "\n";
+
+        // Simulate locales in parallel if requested
+        if (this.numberOfThreads > 1) {
+            this.scheduler = new LocaleScheduler(this.numberOfThreads);
+            this.meta.useScheduler(this.scheduler);
+        }
+
+        // Publish results live if requested
+        if (!this.liveResultsFile.isEmpty()) {
+            this.ring = new ResultsRing(
+                new File(this.liveResultsFile),
+                this.liveResultsSlots,
+                this.xDimension,
+                this.yDimension
+            );
+            this.meta.addResultsListener(this.ring);
+        }
+
+        // Move output onto a writer thread if requested
+        if (this.useAsyncOutput) {
+            if (this.logWindow > 1) {
+                throw new IllegalArgumentException(
+                    "Async output can't be decimated; set logWindow to 1");
+            }
+            this.pipeline = new OutputPipeline(
+                this.testName + ".csv",
+                this.asyncOutputCapacity,
+                this.dropOutputWhenFull
+                    ? OutputPipeline.Backpressure.DROP
+                    : OutputPipeline.Backpressure.BLOCK,
+                this.lineEnding
+            );
+            this.meta.addResultsListener(this.pipeline);
+            this.meta.setPrintProgress(false);
+            this.meta.setKeepLocaleLogs(false);
+        }
+
+        // Stream compressed results if requested
+        if (this.useCompressedOutput) {
+            this.compressed = new CompressedResults(
+                this.testName + "_results.spz",
+                this.xDimension,
+                this.yDimension,
+                this.killRatePrecision
+            );
+            this.meta.addResultsListener(this.compressed);
+            this.meta.setKeepLocaleLogs(false);
+        }
+
+        // Build every locale now if requested
+        if (this.eagerInitialization) {
+            this.meta.materializeAll();
+        }
+
+        // Move predators off the heap if requested
+        if (this.useOffHeapArena) {
+            File file = this.arenaFile.isEmpty() ? null : new File(this.arenaFile);
+            this.arena = new PopulationArena(
+                this.xDimension * this.yDimension,
+                this.startingPredators,
+                file
+            );
+            this.meta.usePopulationArena(this.arena);
         }
     }
 
@@ -219,12 +576,45 @@ public class Main{
      * Executes the simulation and writes parameters and results to output files
      */
     public void executeSimulation() {
-        // Run simulation
-        this.meta.runSimulation(this.numberOfGenerations);
+        // Run simulation, letting live readers know when it stops, flushing
+        // streamed output and stopping worker threads even if it fails
+        try {
+            this.meta.runSimulation(this.numberOfGenerations);
+        } finally {
+            if (this.scheduler != null) {
+                this.scheduler.shutdown();
+            }
+            if (this.ring != null) {
+                this.ring.close();
+            }
+            if (this.pipeline != null) {
+                this.pipeline.close();
+            }
+            if (this.compressed != null) {
+                this.compressed.close();
+            }
+        }
 
         // Generate output files
         outputParameters();
-        outputResults();
+        if (!this.useAsyncOutput && !this.useCompressedOutput) {
+            outputResults();
+        }
+        if (this.useMeanField) {
+            outputTransitions();
+        }
+        // Longevity is only expressed when predators age
+        if ((this.useAgeStructure && this.evolveLongevity)
+                || this.useKillCap || this.useBroodSize) {
+            outputTraits();
+        }
+        if (this.scheduler != null) {
+            outputSchedule();
+        }
+
+        if (this.arena != null) {
+            this.arena.close();
+        }
     }
 
     /**
@@ -246,9 +636,33 @@ public class Main{
                 "pred child cap:        " + maxChildrenPerPredator + lineEnding +
                 "pred mortality rate:   " + predMortalityRate + lineEnding +
                 "mutation rate:         " + mutationRate + lineEnding +
+                "mating scheme:         " + matingScheme + lineEnding +
+                "tournament size:       " + tournamentSize + lineEnding +
+                "age structure:         " + useAgeStructure + lineEnding +
+                "mortality schedule:    " + Arrays.toString(mortalitySchedule) + lineEnding +
+                "evolve longevity:      " + evolveLongevity + lineEnding +
+                "kill cap:              " + (useKillCap ? startingKillCap
+                    + (evolveKillCap ? ", evolving" : ", fixed") : "off") + lineEnding +
+                "brood size:            " + (useBroodSize ? startingBroodSize
+                    + (evolveBroodSize ? ", evolving" : ", fixed") : "off") + lineEnding +
                 "emigration chance:     " + emigrationAllowed + lineEnding +
                 "emigration rate:       " + individualEmigrationRate + lineEnding +
-                "prey migration rate:   " + preyMigration;
+                "prey migration rate:   " + preyMigration + lineEnding +
+                "prey diffusion:        " + (usePreyDiffusion
+                    ? Arrays.toString(diffusionWeights) : "off") + lineEnding +
+                "off-heap arena:        " + useOffHeapArena + lineEnding +
+                "mean-field hunting:    " + useMeanField + lineEnding +
+                "mean-field enter:      " + meanFieldEnterPrey + " prey, "
+                    + meanFieldEnterPreds + " preds" + lineEnding +
+                "mean-field exit:       " + meanFieldExitPrey + " prey, "
+                    + meanFieldExitPreds + " preds" + lineEnding +
+                "log window:            " + logWindow + lineEnding +
+                "eager initialization:  " + eagerInitialization + lineEnding +
+                "number of threads:     " + numberOfThreads + lineEnding +
+                "live results file:     " + liveResultsFile + lineEnding +
+                "async output:          " + useAsyncOutput + lineEnding +
+                "compressed output:     " + useCompressedOutput + lineEnding +
+                "kill rate precision:   " + killRatePrecision;
 
         try {
             fileWriter = new FileWriter(testName + ".txt");
@@ -302,6 +716,102 @@ public class Main{
         }
     }
 
+    /**
+     * Writes every locale's switches between individual-based and mean-field
+     * simulation to a .csv file
+     */
+    private void outputTransitions() {
+        String transitions = "X, Y, Generation, Mode, Prey, Preds" + lineEnding;
+        for (int x = 0; x < meta.getxDimension(); x++) {
+            for (int y = 0; y < meta.getyDimension(); y++) {
+                String log = meta.getLocaleAt(x, y).getTransitionLog();
+                for (String line : log.split("\n")) {
+                    if (!line.isEmpty()) {
+                        transitions += x + "," + y + "," + line + lineEnding;
+                    }
+                }
+            }
+        }
+
+        try {
+            fileWriter = new FileWriter(testName + "_transitions.csv");
+            bw = new BufferedWriter(fileWriter);
+            bw.write(transitions);
+
+        } catch (IOException writeException){
+            writeException.printStackTrace();
+
+        } finally {
+            try {
+                bw.close();
+                fileWriter.close();
+
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the statistics of every locale's extra predator traits to a .csv
+     * file
+     */
+    private void outputTraits() {
+        String traits = "X, Y, Generation, Trait, Mean, Min, Max" + lineEnding;
+        for (int x = 0; x < meta.getxDimension(); x++) {
+            for (int y = 0; y < meta.getyDimension(); y++) {
+                String log = meta.getLocaleAt(x, y).getTraitLog();
+                for (String line : log.split("\n")) {
+                    if (!line.isEmpty()) {
+                        traits += x + "," + y + "," + line + lineEnding;
+                    }
+                }
+            }
+        }
+
+        try {
+            fileWriter = new FileWriter(testName + "_traits.csv");
+            bw = new BufferedWriter(fileWriter);
+            bw.write(traits);
+
+        } catch (IOException writeException){
+            writeException.printStackTrace();
+
+        } finally {
+            try {
+                bw.close();
+                fileWriter.close();
+
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the parallel scheduler's per-generation load balance to a .csv
+     * file
+     */
+    private void outputSchedule() {
+        try {
+            fileWriter = new FileWriter(testName + "_schedule.csv");
+            bw = new BufferedWriter(fileWriter);
+            bw.write(scheduler.getBalanceLog().replace("\n", lineEnding));
+
+        } catch (IOException writeException){
+            writeException.printStackTrace();
+
+        } finally {
+            try {
+                bw.close();
+                fileWriter.close();
+
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+        }
+    }
+
 
     ////////////////////////////////////////////////////////////////////////////
     ///
@@ -0,0 +1,22 @@
+/**
+ * Ways in which a generation can choose parents for its new predators
+ *
+ * RANDOM_PAIRS:  Predators are shuffled into pairs, and each pair has children
+ *  according to its combined kills
+ *
+ * FITNESS_PROPORTIONAL:  The population has children according to its total
+ *  kills, and each child's parents are drawn with chances proportional to
+ *  their kills
+ *
+ * TOURNAMENT:  Like FITNESS_PROPORTIONAL, but each parent is the predator
+ *  with the most kills out of a few drawn at random
+ *
+ * TRUNCATION:  Predators that made no kills die before breeding, and the
+ *  rest are paired as in RANDOM_PAIRS
+ */
+public enum MatingScheme {
+    RANDOM_PAIRS,
+    FITNESS_PROPORTIONAL,
+    TOURNAMENT,
+    TRUNCATION
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+/**
+ * Data transfer object for the population sizes at which a locale switches
+ * between individual-based and mean-field simulation.  Entry thresholds should
+ * be higher than exit thresholds so that a locale near the boundary doesn't
+ * flip back and forth every generation.
+ */
+
+public class MeanFieldThresholds {
+	private int enterPrey;
+
+	private int enterPreds;
+
+	private int exitPrey;
+
+	private int exitPreds;
+
+	public MeanFieldThresholds(
+		int enterPrey, 
+		int enterPreds, 
+		int exitPrey, 
+		int exitPreds
+	) {
+		this.enterPrey = enterPrey;
+		this.enterPreds = enterPreds;
+		this.exitPrey = exitPrey;
+		this.exitPreds = exitPreds;
+	}
+
+	public int getEnterPrey() {
+		return this.enterPrey;
+	}
+
+	public int getEnterPreds() {
+		return this.enterPreds;
+	}
+
+	public int getExitPrey() {
+		return this.exitPrey;
+	}
+
+	public int getExitPreds() {
+		return this.exitPreds;
+	}
+}
\ No newline at end of file
@@ -8,14 +8,25 @@
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 public class Metapopulation {
     /*
-     * Population array:  2D ArrayList of locales
+     * Population array:  2D ArrayList of locales.  A locale is null until it
+     * is first used, and is then built from its starting description.
      */
     private List<List<Locale>> popArray;
 
+    /*
+     * Starting description of every locale, indexed by x * yDimension + y
+     */
+    private double[] startingKillRates;
+    private int startingPredPop;
+    private int startingPreyPop;
+    private int logWindow;
+
     private int xDimension;
     private int yDimension;
 
@@ -26,6 +37,48 @@ public class Metapopulation {
     private Random random;
     private Generation generation;
 
+    /*
+     * Optional prey diffusion.  When diffusionWeights is set, prey no longer
+     * move with migration events; instead every locale sends a fixed fraction
+     * of its prey to each of its four neighbors every generation.  The
+     * weights are the fractions sent east, north, west and south.
+     *
+     * preyField holds every locale's prey, indexed by x * yDimension + y, and
+     * the outflow arrays hold what each locale sends in each direction.
+     */
+    private double[] diffusionWeights;
+    private boolean parallelDiffusion;
+    private int[] preyField;
+    private int[][] outflow;
+
+    /*
+     * Optional off-heap storage for predators between generations
+     */
+    private PopulationArena arena;
+
+    /*
+     * Optional scheduler for simulating locales in parallel.  Each locale then
+     * gets its own random, seeded from localeSeedBase and its index.
+     */
+    private LocaleScheduler scheduler;
+    private long localeSeedBase;
+
+    /*
+     * Listeners that receive every locale's statistics each generation
+     */
+    private List<ResultsListener> listeners = new ArrayList<>();
+    private int generationCount = 0;
+
+    /*
+     * Whether locales keep their in-memory text logs
+     */
+    private boolean keepLocaleLogs = true;
+
+    /*
+     * Whether runSimulation prints each generation number to the console
+     */
+    private boolean printProgress = true;
+
     /**
      * Constructor for a metapopulation
      * @param xDimension Width of the metapopulation
@@ -43,6 +96,32 @@ public class Metapopulation {
         Random random, 
         Generation generation
     ) {
+        this(xDimension, yDimension, popStart, migration, random, generation, 1);
+    }
+
+    /**
+     * Constructor for a metapopulation whose locales keep decimated logs
+     * @param xDimension Width of the metapopulation
+     * @param yDimension Height of the metapopulation
+     * @param popStart Contains starting population data
+     * @param migration Contains migration data
+     * @param random Random for use in math
+     * @param generation Contains basic artificial life functions
+     * @param logWindow Number of generations summarized by each log row
+     */
+    public Metapopulation(
+        int xDimension, 
+        int yDimension, 
+        PopulationStart popStart, 
+        MigrationPattern migration, 
+        Random random, 
+        Generation generation,
+        int logWindow
+    ) {
+        if (logWindow < 1) {
+            throw new IllegalArgumentException(
+                "Log windows must be at least 1 generation, not " + logWindow);
+        }
         this.xDimension = xDimension;
         this.yDimension = yDimension;
         this.popArray = new ArrayList<>(xDimension);
@@ -54,26 +133,176 @@ public class Metapopulation {
         this.random = random;
         this.generation = generation;
 
-        // Instantiate locale grid
+        // Describe the locale grid without building it yet
         // Each locale has a unique starting kill rate that it assigns to its
         // entire predator population
+        this.startingPredPop = popStart.getStartingPredPop();
+        this.startingPreyPop = popStart.getStartingPreyPop();
+        this.logWindow = logWindow;
+        this.startingKillRates = new double[xDimension * yDimension];
         double lowerKillRate = popStart.getLowerKillRateBound();
         double upperKillRate = popStart.getUpperKillRateBound();
         double killRateRange = upperKillRate - lowerKillRate;
-        double newKillRate;
         for (int x = 0; x < xDimension; x++){
-            ArrayList<Locale> localeList = new ArrayList<>(yDimension);
             for (int y = 0; y < yDimension; y++){
                 // newKillRate falls between the upper and lower bound
-                newKillRate = lowerKillRate + (random.nextDouble() * killRateRange);
-                int predPop = popStart.getStartingPredPop();
-                int preyPop = popStart.getStartingPreyPop();
-                localeList.add(y, new Locale(predPop, preyPop, newKillRate));
+                double newKillRate =
+                    lowerKillRate + (random.nextDouble() * killRateRange);
+                this.startingKillRates[x * yDimension + y] = newKillRate;
+            }
+            this.popArray.add(x, new ArrayList<>(
+                Collections.nCopies(yDimension, (Locale)null)));
+        }
+    }
+
+    /**
+     * Builds every locale that hasn't been built yet, spreading the work
+     * across all available cores.  Without this, each locale is built the
+     * first time it is used.
+     */
+    public void materializeAll() {
+        // Each task only ever writes its own slot of the grid
+        IntStream.range(0, this.xDimension * this.yDimension)
+            .parallel()
+            .forEach(i -> getLocaleAt(i / this.yDimension, i % this.yDimension));
+    }
+
+    /**
+     * Builds a locale from its starting description and puts it in the grid
+     * @param x Horizontal coordinate of the locale
+     * @param y Vertical coordinate of the locale
+     * @return The new locale
+     */
+    private Locale materialize(int x, int y) {
+        int index = x * this.yDimension + y;
+        Locale locale = new Locale(
+            this.startingPredPop,
+            this.startingPreyPop,
+            this.startingKillRates[index],
+            this.logWindow
+        );
+        if (this.arena != null) {
+            locale.attachArena(this.arena, index);
+        }
+        if (this.scheduler != null) {
+            locale.setRandom(localeRandom(index));
+        }
+        locale.setKeepLog(this.keepLocaleLogs);
+        this.popArray.get(x).set(y, locale);
+        return locale;
+    }
+
+    /**
+     * Moves every locale's predators into an off-heap arena.  From then on,
+     * each locale's predators are only brought back onto the heap while that
+     * locale is being simulated or is taking part in migration.
+     * @param arena Arena with one slab per locale
+     */
+    public void usePopulationArena(PopulationArena arena) {
+        this.arena = arena;
+
+        // Locales that haven't been built yet attach themselves when they are
+        for (int x = 0; x < this.xDimension; x++) {
+            for (int y = 0; y < this.yDimension; y++) {
+                Locale locale = this.popArray.get(x).get(y);
+                if (locale != null) {
+                    locale.attachArena(arena, x * this.yDimension + y);
+                    locale.park();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves prey by diffusion instead of migration events from now on
+     * @param weights Fraction of a locale's prey sent east, north, west and
+     *                south each generation, adding up to at most 1
+     * @param parallel Whether to split the grid into bands of rows that are
+     *                 diffused on separate cores
+     */
+    public void usePreyDiffusion(double[] weights, boolean parallel) {
+        double total = 0;
+        for (double weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException(
+                    "Diffusion weights can't be negative");
+            }
+            total += weight;
+        }
+        if (weights.length != 4 || total > 1) {
+            throw new IllegalArgumentException(
+                "Diffusion needs four weights adding up to at most 1");
+        }
+        this.diffusionWeights = weights.clone();
+        this.parallelDiffusion = parallel;
+        this.preyField = new int[this.xDimension * this.yDimension];
+        this.outflow = new int[4][this.xDimension * this.yDimension];
+    }
+
+    /**
+     * Streams every locale's statistics to a listener after each generation
+     * @param listener Listener to add
+     */
+    public void addResultsListener(ResultsListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Turns every locale's in-memory text log on or off, for when results are
+     * streamed to a listener instead
+     * @param keepLocaleLogs Whether locales add rows to their logs
+     */
+    public void setKeepLocaleLogs(boolean keepLocaleLogs) {
+        this.keepLocaleLogs = keepLocaleLogs;
+        for (int x = 0; x < this.xDimension; x++) {
+            for (int y = 0; y < this.yDimension; y++) {
+                Locale locale = this.popArray.get(x).get(y);
+                if (locale != null) {
+                    locale.setKeepLog(keepLocaleLogs);
+                }
             }
-            this.popArray.add(x, localeList);
         }
     }
 
+    /**
+     * Turns printing of generation numbers in runSimulation on or off, for
+     * when progress is reported some other way
+     * @param printProgress Whether to print each generation number
+     */
+    public void setPrintProgress(boolean printProgress) {
+        this.printProgress = printProgress;
+    }
+
+    /**
+     * Simulates locales in parallel from now on.  Every locale gets its own
+     * random so that results don't depend on which thread runs it when.
+     * @param scheduler Scheduler that hands locales out to threads
+     */
+    public void useScheduler(LocaleScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.localeSeedBase = this.random.nextLong();
+
+        // Locales that haven't been built yet get their random when they are
+        for (int x = 0; x < this.xDimension; x++) {
+            for (int y = 0; y < this.yDimension; y++) {
+                Locale locale = this.popArray.get(x).get(y);
+                if (locale != null) {
+                    locale.setRandom(localeRandom(x * this.yDimension + y));
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the random for a single locale.  Mixing the index into the seed
+     * keeps neighboring locales' sequences unrelated.
+     * @param index Index of the locale, x * yDimension + y
+     * @return Random for the locale
+     */
+    private Random localeRandom(int index) {
+        return new Random(this.localeSeedBase ^ (index * 0x9E3779B97F4A7C15L));
+    }
+
     /**
      * Simulates population cycles in the metapopulation for a given number of
      * generations.
@@ -81,22 +310,86 @@ public class Metapopulation {
      *                            cycles to simulate
      */
     public void runSimulation(int numberOfGenerations) {
-        Locale currentLocale;
-
         // Simulate a given number of generations
         for (int gen = 1; gen <= numberOfGenerations; gen++) {
-            System.out.println(gen);
+            if (this.printProgress) {
+                System.out.println(gen);
+            }
+            simulateGeneration();
+        }
+
+        // Write out any partly filled log windows
+        for (int x = 0; x < this.xDimension; x++) {
+            for (int y = 0; y < this.yDimension; y++) {
+                getLocaleAt(x, y).flushLog();
+            }
+        }
+    }
+
+    /**
+     * Simulates a single predation/reproduction/migration cycle across the
+     * whole metapopulation
+     */
+    public void simulateGeneration() {
+        Locale currentLocale;
 
-            // Run a generation on every locale
+        // Publish the starting populations before the first generation, as
+        // the first row of every locale log
+        if (this.generationCount == 0) {
+            publishResults();
+        }
+
+        // Run a generation on every locale
+        if (this.scheduler != null) {
+            List<Locale> locales = new ArrayList<>(xDimension * yDimension);
+            for (int x = 0; x < this.xDimension; x++){
+                for (int y = 0; y < this.yDimension; y++){
+                    locales.add(getLocaleAt(x, y));
+                }
+            }
+            this.scheduler.run(locales, locale -> {
+                this.generation.runGeneration(locale);
+                locale.park();
+            });
+        } else {
             for (int x = 0; x < this.xDimension; x++){
                 for (int y = 0; y < this.yDimension; y++){
                     currentLocale = getLocaleAt(x, y);
                     this.generation.runGeneration(currentLocale);
+                    currentLocale.park();
                 }
             }
+        }
+
+        // Publish this generation's results
+        this.generationCount++;
+        publishResults();
+
+        // Allow predators and prey to migrate between locales
+        migrate();
 
-            // Allow predators and prey to migrate between locales
-            migrate();
+        // Close the gaps left by locales that outgrew their slabs
+        if (this.arena != null) {
+            this.arena.compactIfFragmented();
+        }
+    }
+
+    /**
+     * Hands every locale's most recent log snapshot to the results listeners
+     */
+    private void publishResults() {
+        if (this.listeners.isEmpty()) {
+            return;
+        }
+        for (int x = 0; x < this.xDimension; x++){
+            for (int y = 0; y < this.yDimension; y++){
+                for (ResultsListener listener : this.listeners) {
+                    listener.record(generationCount, x, y, getLocaleAt(x, y));
+                }
+            }
+        }
+        for (ResultsListener listener : this.listeners) {
+            listener.endGeneration(generationCount);
         }
     }
 
@@ -154,22 +447,111 @@ public class Metapopulation {
                         int max = sourceLoc.getNumPreds();
                         for (int predIndex = 0; predIndex < max; predIndex++){
                             if (random.nextFloat() < this.predMigrationRate){
-                                destLoc.addPred(sourceLoc.popPred(predIndex));
+                                sourceLoc.movePred(predIndex, destLoc);
                                 max--;
                             }
                         }
                     }
 
-                    // Migrate prey
-                    if (this.preyMigrationRate > 0) {
+                    // Migrate prey, unless they diffuse instead
+                    if (this.preyMigrationRate > 0
+                            && this.diffusionWeights == null) {
                         int preyTransfer = (int)(sourceLoc.getNumPrey() 
                             * this.preyMigrationRate);
                         sourceLoc.reduceBasePrey(preyTransfer);
                         destLoc.setNumPrey(destLoc.getNumPrey() + preyTransfer);
                     }
+
+                    // Return any predators that migration brought onto the
+                    // heap to the arena
+                    sourceLoc.park();
+                    destLoc.park();
                 }
             }
         }
+
+        if (this.diffusionWeights != null) {
+            diffusePrey();
+        }
+    }
+
+    /**
+     * Moves prey between every pair of neighboring locales at once.
+     *
+     * Each locale's outflow in every direction is rounded down once, and that
+     * same number is both taken from the sender and given to the receiver, so
+     * the total number of prey never changes.  The first pass works out every
+     * outflow; the second gathers each locale's inflow from its neighbors'
+     * outflows.  Both passes run along the flat prey field a row at a time,
+     * with the wrap-around at the ends of a row handled separately, so the
+     * inner loops are simple enough for the JIT to vectorize.
+     */
+    public void diffusePrey() {
+        int numLocales = this.xDimension * this.yDimension;
+        for (int i = 0; i < numLocales; i++) {
+            this.preyField[i] =
+                getLocaleAt(i / this.yDimension, i % this.yDimension).getNumPrey();
+        }
+
+        IntStream rows = IntStream.range(0, this.xDimension);
+        (this.parallelDiffusion ? rows.parallel() : rows).forEach(this::computeOutflow);
+        rows = IntStream.range(0, this.xDimension);
+        (this.parallelDiffusion ? rows.parallel() : rows).forEach(this::gatherInflow);
+
+        for (int i = 0; i < numLocales; i++) {
+            getLocaleAt(i / this.yDimension, i % this.yDimension)
+                .setNumPrey(this.preyField[i]);
+        }
+    }
+
+    /**
+     * Works out how many prey each locale in a row sends in each direction
+     * @param x Row of the grid
+     */
+    private void computeOutflow(int x) {
+        int start = x * this.yDimension;
+        int end = start + this.yDimension;
+        for (int direction = 0; direction < 4; direction++) {
+            int[] sent = this.outflow[direction];
+            double weight = this.diffusionWeights[direction];
+            for (int i = start; i < end; i++) {
+                sent[i] = (int)(this.preyField[i] * weight);
+            }
+        }
+    }
+
+    /**
+     * Applies every locale in a row's outflow and its neighbors' inflow.
+     * Rows only write their own part of the field, and only read outflows,
+     * so rows can be done in any order once every outflow is known.
+     * @param x Row of the grid
+     */
+    private void gatherInflow(int x) {
+        int[] east = this.outflow[0];
+        int[] north = this.outflow[1];
+        int[] west = this.outflow[2];
+        int[] south = this.outflow[3];
+
+        // The rows to the east and west send prey west and east into this row
+        int start = x * this.yDimension;
+        int end = start + this.yDimension;
+        int eastRow = Math.floorMod(x + 1, this.xDimension) * this.yDimension - start;
+        int westRow = Math.floorMod(x - 1, this.xDimension) * this.yDimension - start;
+        for (int i = start; i < end; i++) {
+            this.preyField[i] += west[i + eastRow] + east[i + westRow]
+                - east[i] - north[i] - west[i] - south[i];
+        }
+
+        // Within the row, each locale gets prey sent south from the one above
+        // and north from the one below, wrapping around at the ends
+        for (int i = start; i < end - 1; i++) {
+            this.preyField[i] += south[i + 1];
+        }
+        this.preyField[end - 1] += south[start];
+        for (int i = start + 1; i < end; i++) {
+            this.preyField[i] += north[i - 1];
+        }
+        this.preyField[start] += north[end - 1];
     }
 
     /**
@@ -179,7 +561,11 @@ public class Metapopulation {
      * @return Location at (x,y)
      */
     public Locale getLocaleAt(int x, int y) {
-        return this.popArray.get(x).get(y);
+        Locale locale = this.popArray.get(x).get(y);
+        if (locale == null) {
+            locale = materialize(x, y);
+        }
+        return locale;
     }
 
     /**
@@ -0,0 +1,260 @@
+/**
+ * Moves output off the simulation thread.  The simulation publishes each
+ * locale's results into a bounded ring of preallocated records, and a
+ * dedicated writer thread takes them out in batches, writes them to a .csv
+ * file, and prints generation progress to the console.  The simulation only
+ * ever copies a few numbers into a slot; it never waits on the disk or the
+ * console unless the ring is full and the pipeline is set to block.
+ *
+ * One thread may publish and one thread writes.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class OutputPipeline implements ResultsListener {
+    /*
+     * What to do when the simulation gets a full ring ahead of the writer
+     *
+     * BLOCK:  Wait for the writer to free a slot, so nothing is lost
+     * DROP:  Throw the record away and count it, so the simulation never waits
+     */
+    public enum Backpressure { BLOCK, DROP }
+
+    /*
+     * A slot in the ring.  Slots are allocated once and reused.
+     */
+    private static class Record {
+        private boolean endOfGeneration;
+        private int generation;
+        private int x;
+        private int y;
+        private int prey;
+        private int preds;
+        private double maxKillRate;
+        private double avgKillRate;
+    }
+
+    // Records written between flushes of the file
+    private static final int BATCH_SIZE = 4096;
+
+    private Record[] ring;
+    private int mask;
+    private Backpressure backpressure;
+
+    // Records published by the simulation and consumed by the writer.  Each
+    // counter only ever grows and is only written by one thread.
+    private AtomicLong published = new AtomicLong();
+    private AtomicLong consumed = new AtomicLong();
+    private long dropped = 0;
+
+    private volatile boolean closed = false;
+    private Thread writerThread;
+
+    // Whatever stopped the writer thread, if it died before being closed
+    private volatile Throwable writerFailure;
+    private BufferedWriter bw;
+    private String lineEnding;
+
+    /**
+     * Constructor for a pipeline, which starts its writer thread right away
+     * @param fileName Name of the .csv file to stream results into
+     * @param capacity Minimum number of records the ring holds, rounded up to a
+     *                 power of two
+     * @param backpressure What to do when the ring is full
+     * @param lineEnding Line ending for the output file
+     */
+    public OutputPipeline(
+        String fileName,
+        int capacity,
+        Backpressure backpressure,
+        String lineEnding
+    ) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.ring = new Record[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+        }
+        this.mask = size - 1;
+        this.backpressure = backpressure;
+        this.lineEnding = lineEnding;
+
+        try {
+            this.bw = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+            bw.write("Generation, X, Y, Prey, Preds, Max KR, Avg KR" + lineEnding);
+        } catch (IOException writeException) {
+            throw new IllegalStateException(
+                "Could not open " + fileName, writeException);
+        }
+
+        this.writerThread = new Thread(() -> {
+            try {
+                drain();
+            } catch (RuntimeException | Error failure) {
+                writerFailure = failure;
+                throw failure;
+            }
+        }, "output-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void record(int generation, int x, int y, Locale locale) {
+        Record record = claim();
+        if (record == null) {
+            return;
+        }
+        record.endOfGeneration = false;
+        record.generation = generation;
+        record.x = x;
+        record.y = y;
+        record.prey = locale.getLoggedPrey();
+        record.preds = locale.getLoggedPreds();
+        record.maxKillRate = locale.getLoggedMaxKillRate();
+        record.avgKillRate = locale.getLoggedAvgKillRate();
+        publish();
+    }
+
+    @Override
+    public void endGeneration(int generation) {
+        Record record = claim();
+        if (record == null) {
+            return;
+        }
+        record.endOfGeneration = true;
+        record.generation = generation;
+        publish();
+    }
+
+    /**
+     * Waits for the writer to write out everything published so far, then
+     * closes the output file.  Safe to call more than once, and should be
+     * called even if the simulation failed.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped > 0) {
+            System.out.println("Output pipeline dropped " + dropped + " records");
+        }
+    }
+
+    /**
+     * Getter for the number of records thrown away because the ring was full
+     * @return Number of dropped records
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Finds the next free slot, applying backpressure if there isn't one
+     * @return Slot to fill, or null if the record should be dropped
+     * @throws IllegalStateException If the ring is full and the writer thread
+     *                               has died, so no slot will ever free up
+     */
+    private Record claim() {
+        long next = published.get();
+        while (next - consumed.get() >= ring.length) {
+            if (backpressure == Backpressure.DROP) {
+                dropped++;
+                return null;
+            }
+            if (!writerThread.isAlive()) {
+                throw new IllegalStateException(
+                    "Output writer thread stopped", writerFailure);
+            }
+            // Wake the writer and give it the CPU rather than spinning
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(50_000);
+        }
+        return ring[(int)(next & mask)];
+    }
+
+    /**
+     * Hands the most recently claimed slot to the writer
+     */
+    private void publish() {
+        published.lazySet(published.get() + 1);
+    }
+
+    /**
+     * Body of the writer thread:  writes batches of records until the
+     * pipeline is closed and the ring is empty
+     */
+    private void drain() {
+        StringBuilder line = new StringBuilder(128);
+        long next = consumed.get();
+        boolean failed = false;
+        while (true) {
+            // Read closed before published, so that nothing published before
+            // close() is missed
+            boolean finishing = closed;
+            long available = published.get();
+            if (next == available) {
+                if (finishing) {
+                    break;
+                }
+                flush(failed);
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+
+            long batchEnd = Math.min(available, next + BATCH_SIZE);
+            for (; next < batchEnd; next++) {
+                Record record = ring[(int)(next & mask)];
+                if (record.endOfGeneration) {
+                    System.out.println(record.generation);
+                    continue;
+                }
+                line.setLength(0);
+                line.append(record.generation).append(',')
+                    .append(record.x).append(',')
+                    .append(record.y).append(',')
+                    .append(record.prey).append(',')
+                    .append(record.preds).append(',')
+                    .append(record.maxKillRate).append(',')
+                    .append(record.avgKillRate).append(lineEnding);
+                if (!failed) {
+                    try {
+                        bw.append(line);
+                    } catch (IOException writeException) {
+                        writeException.printStackTrace();
+                        failed = true;
+                    }
+                }
+            }
+            consumed.lazySet(next);
+        }
+
+        try {
+            bw.close();
+        } catch (IOException closeException) {
+            closeException.printStackTrace();
+        }
+    }
+
+    private void flush(boolean failed) {
+        if (failed) {
+            return;
+        }
+        try {
+            bw.flush();
+        } catch (IOException flushException) {
+            flushException.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * Maps which combinations of migration and generation parameters lead to
+ * stable populations.
+ *
+ * Sweeping a full grid of parameters spends most of its time on runs that die
+ * out within a few hundred generations.  The explorer instead starts from a
+ * Latin hypercube sample of parameter space and runs every candidate in
+ * parallel, stopping a run as soon as its fate is certain:  once either
+ * species is gone from the whole metapopulation it can never come back, and
+ * once predators pass a population cap the run is treated as runaway growth.
+ *
+ * Between rounds, new candidates are placed halfway between each failed run
+ * and its nearest surviving neighbor, so later rounds spend their budget on
+ * the boundary between stable and unstable regions.  Surviving runs carry on
+ * from where they stopped, each round extending them to a longer length.
+ * The result is written as a table with one row per candidate.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ParameterExplorer {
+    /*
+     * Parameters explored, in the order they appear in a candidate
+     */
+    private static final String[] PARAMETERS = {
+        "emigration chance",
+        "emigration rate",
+        "prey migration rate",
+        "pred growth rate",
+        "pred mortality rate",
+        "mutation rate"
+    };
+
+    /*
+     * How a candidate's run ended.  A run that is still going when the
+     * exploration ends counts as stable.
+     */
+    private enum Outcome { STABLE, EXTINCT, RUNAWAY }
+
+    /*
+     * A single point in parameter space and the run simulating it
+     */
+    private static class Candidate {
+        private double[] params;
+        private Metapopulation meta;
+        private int generationsRun = 0;
+        private Outcome outcome = Outcome.STABLE;
+    }
+
+    private double[] lowerBounds;
+    private double[] upperBounds;
+    private int[] generationBudgets;
+    private int refinementsPerRound;
+    private int runawayPredsPerLocale;
+    private int numberOfThreads;
+    private Random random;
+
+    private List<Candidate> candidates = new ArrayList<>();
+
+    // Failed and stable candidates that already have a candidate between them
+    private Set<List<Candidate>> refinedPairs = new HashSet<>();
+
+    /**
+     * Constructor for an explorer
+     * @param lowerBounds Lowest value of each parameter, in PARAMETERS order
+     * @param upperBounds Highest value of each parameter
+     * @param generationBudgets Length each surviving run is extended to in
+     *                          each round
+     * @param refinementsPerRound New candidates added near the stability
+     *                            boundary after each round but the last
+     * @param runawayPredsPerLocale Average predators per locale above which a
+     *                              run counts as runaway growth
+     * @param numberOfThreads Number of runs simulated at the same time
+     * @param seed Seed for sampling and for every run
+     */
+    public ParameterExplorer(
+        double[] lowerBounds,
+        double[] upperBounds,
+        int[] generationBudgets,
+        int refinementsPerRound,
+        int runawayPredsPerLocale,
+        int numberOfThreads,
+        long seed
+    ) {
+        this.lowerBounds = lowerBounds;
+        this.upperBounds = upperBounds;
+        this.generationBudgets = generationBudgets;
+        this.refinementsPerRound = refinementsPerRound;
+        this.runawayPredsPerLocale = runawayPredsPerLocale;
+        this.numberOfThreads = numberOfThreads;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Runs the whole exploration
+     * @param initialSamples Size of the starting Latin hypercube sample
+     */
+    public void explore(int initialSamples) {
+        addLatinHypercube(initialSamples);
+        for (int round = 0; round < generationBudgets.length; round++) {
+            runAll(generationBudgets[round]);
+            System.out.println("round " + (round + 1) + ": "
+                + countStable() + " of " + candidates.size() + " stable");
+            if (round < generationBudgets.length - 1) {
+                refineBoundary();
+            }
+        }
+    }
+
+    /**
+     * Writes the stability map as a .csv table, one row per candidate
+     * @param fileName Name of the file to write
+     */
+    public void writeMap(String fileName) {
+        String header = String.join(", ", PARAMETERS)
+            + ", outcome, generations, prey, preds, avg KR\n";
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fileName))) {
+            bw.write(header);
+            for (Candidate candidate : candidates) {
+                String row = "";
+                for (double param : candidate.params) {
+                    row += param + ",";
+                }
+                row += candidate.outcome.name().toLowerCase() + ","
+                    + candidate.generationsRun + ","
+                    + totalPrey(candidate.meta) + ","
+                    + totalPreds(candidate.meta) + ","
+                    + averageKillRate(candidate.meta) + "\n";
+                bw.write(row);
+            }
+        } catch (IOException writeException) {
+            writeException.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a Latin hypercube sample:  each parameter's range is cut into one
+     * slice per sample, and every slice of every parameter is used exactly once
+     */
+    private void addLatinHypercube(int samples) {
+        int dimensions = PARAMETERS.length;
+        double[][] points = new double[samples][dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            List<Integer> slices = new ArrayList<>(samples);
+            for (int i = 0; i < samples; i++) {
+                slices.add(i);
+            }
+            Collections.shuffle(slices, random);
+            for (int i = 0; i < samples; i++) {
+                double unit = (slices.get(i) + random.nextDouble()) / samples;
+                points[i][d] = denormalize(d, unit);
+            }
+        }
+        for (double[] point : points) {
+            addCandidate(point);
+        }
+    }
+
+    /**
+     * Places new candidates between failed runs and their nearest stable
+     * neighbors, widest gaps first.  If nothing has failed, or nothing has
+     * survived, there is no boundary yet, so the space is sampled again.
+     */
+    private void refineBoundary() {
+        List<Candidate> stable = new ArrayList<>();
+        List<Candidate> failed = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (candidate.outcome == Outcome.STABLE) {
+                stable.add(candidate);
+            } else {
+                failed.add(candidate);
+            }
+        }
+        if (stable.isEmpty() || failed.isEmpty()) {
+            addLatinHypercube(refinementsPerRound);
+            return;
+        }
+
+        // Pair each failed run with its nearest stable run, skipping pairs
+        // whose gap has already been split
+        List<Candidate[]> pairs = new ArrayList<>();
+        for (Candidate fail : failed) {
+            Candidate nearest = stable.get(0);
+            for (Candidate survivor : stable) {
+                if (distance(fail, survivor) < distance(fail, nearest)) {
+                    nearest = survivor;
+                }
+            }
+            if (refinedPairs.add(List.of(fail, nearest))) {
+                pairs.add(new Candidate[] {fail, nearest});
+            }
+        }
+        pairs.sort(Comparator.comparingDouble(
+            (Candidate[] pair) -> -distance(pair[0], pair[1])));
+
+        for (int i = 0; i < Math.min(refinementsPerRound, pairs.size()); i++) {
+            double[] midpoint = new double[PARAMETERS.length];
+            for (int d = 0; d < midpoint.length; d++) {
+                midpoint[d] =
+                    (pairs.get(i)[0].params[d] + pairs.get(i)[1].params[d]) / 2;
+            }
+            addCandidate(midpoint);
+        }
+    }
+
+    /**
+     * Extends every surviving run to the given length in parallel, stopping
+     * runs early once their fate is certain
+     */
+    private void runAll(int generations) {
+        ExecutorService pool = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Callable<Void>> runs = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                if (candidate.outcome == Outcome.STABLE) {
+                    runs.add(() -> {
+                        run(candidate, generations);
+                        return null;
+                    });
+                }
+            }
+            for (Future<Void> run : pool.invokeAll(runs)) {
+                run.get();
+            }
+        } catch (InterruptedException | ExecutionException runException) {
+            throw new IllegalStateException("Simulation run failed", runException);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void run(Candidate candidate, int generations) {
+        Metapopulation meta = candidate.meta;
+        int numLocales = meta.getxDimension() * meta.getyDimension();
+        while (candidate.generationsRun < generations) {
+            meta.simulateGeneration();
+            candidate.generationsRun++;
+
+            // With no predators or no prey anywhere, nothing can recover:
+            // prey can't regrow from zero, and predators can't breed without
+            // kills
+            long preds = totalPreds(meta);
+            if (preds == 0 || totalPrey(meta) == 0) {
+                candidate.outcome = Outcome.EXTINCT;
+                return;
+            }
+            if (preds > (long)runawayPredsPerLocale * numLocales) {
+                candidate.outcome = Outcome.RUNAWAY;
+                return;
+            }
+        }
+    }
+
+    private void addCandidate(double[] params) {
+        Candidate candidate = new Candidate();
+        candidate.params = params;
+        candidate.meta = buildMetapopulation(params, random.nextLong());
+        candidates.add(candidate);
+    }
+
+    /*
+     * Builds a run with Main's default parameters apart from the ones being
+     * explored, scaled down so that many candidates can be run.
+     */
+    private static Metapopulation buildMetapopulation(double[] params, long seed) {
+        Random random = new Random(seed);
+        PopulationStart popStart = new PopulationStart(50, 2000, .001, .005);
+        MigrationPattern migration = new MigrationPattern(
+            params[0], params[1], params[2]);
+        Generation generation = new Generation(
+            1.3, params[3], 10000, 50, params[4], params[5], random);
+        return new Metapopulation(3, 2, popStart, migration, random, generation);
+    }
+
+    private double denormalize(int dimension, double unit) {
+        return lowerBounds[dimension]
+            + unit * (upperBounds[dimension] - lowerBounds[dimension]);
+    }
+
+    /*
+     * Distance between candidates with every parameter scaled to [0, 1]
+     */
+    private double distance(Candidate first, Candidate second) {
+        double sum = 0;
+        for (int d = 0; d < PARAMETERS.length; d++) {
+            double range = upperBounds[d] - lowerBounds[d];
+            double diff = range > 0
+                ? (first.params[d] - second.params[d]) / range : 0;
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private int countStable() {
+        int stable = 0;
+        for (Candidate candidate : candidates) {
+            if (candidate.outcome == Outcome.STABLE) {
+                stable++;
+            }
+        }
+        return stable;
+    }
+
+    private static long totalPrey(Metapopulation meta) {
+        long prey = 0;
+        for (int x = 0; x < meta.getxDimension(); x++) {
+            for (int y = 0; y < meta.getyDimension(); y++) {
+                prey += meta.getLocaleAt(x, y).getNumPrey();
+            }
+        }
+        return prey;
+    }
+
+    private static long totalPreds(Metapopulation meta) {
+        long preds = 0;
+        for (int x = 0; x < meta.getxDimension(); x++) {
+            for (int y = 0; y < meta.getyDimension(); y++) {
+                preds += meta.getLocaleAt(x, y).getNumPreds();
+            }
+        }
+        return preds;
+    }
+
+    private static double averageKillRate(Metapopulation meta) {
+        double sumKillRates = 0;
+        long preds = 0;
+        for (int x = 0; x < meta.getxDimension(); x++) {
+            for (int y = 0; y < meta.getyDimension(); y++) {
+                Locale locale = meta.getLocaleAt(x, y);
+                sumKillRates += locale.getAvgKillRate() * locale.getNumPreds();
+                preds += locale.getNumPreds();
+            }
+        }
+        return preds > 0 ? sumKillRates / preds : 0;
+    }
+
+
+    ////////////////////////////////////////////////////////////////////////////
+    ///
+    /// Main Function
+    ///
+    ////////////////////////////////////////////////////////////////////////////
+
+    public static void main(String[] args) {
+        // Ranges cover the settings used for the runs in src/data
+        double[] lower = {0.0, 0.0, 0.0, .001, .1, 0.0};
+        double[] upper = {0.6, .05, .05, .01, .6, .2};
+        ParameterExplorer explorer = new ParameterExplorer(
+            lower,
+            upper,
+            new int[] {100, 400, 1000},
+            16,
+            5000,
+            Runtime.getRuntime().availableProcessors(),
+            1L
+        );
+        explorer.explore(32);
+        explorer.writeMap("stability_map.csv");
+    }
+}
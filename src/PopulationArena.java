@@ -0,0 +1,388 @@
+/**
+ * Off-heap storage for the predator populations of every locale in a
+ * metapopulation.  While a locale is not being simulated, its predators can be
+ * "parked" in the arena instead of living on the Java heap as Predator objects.
+ *
+ * The arena is a sequence of records, divided into slabs.  Each locale owns
+ * one slab, and an offset table records where each slab starts, how many
+ * predators it can hold, and how many it currently holds.  A predator is
+ * stored as a fixed-size record of its genome, kill count and age.
+ *
+ * Records live in fixed-size chunks, either direct buffers or consecutive
+ * regions of one memory-mapped file, so the arena is only limited by memory
+ * or disk space rather than by the 2 GiB a single buffer can address.  The
+ * arena grows by adding chunks, which never copies existing records.
+ *
+ * When a locale outgrows its slab, the slab is moved to the end of the arena,
+ * leaving a hole behind.  Calling compact() between generations slides every
+ * slab back down so the arena stays dense, and gives chunks that are no
+ * longer used back, shrinking the backing file if there is one.  The file
+ * only holds parked predators, so close() deletes it.
+ *
+ * Locales simulated in parallel share one arena, so every public method is
+ * synchronized.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PopulationArena {
+    /*
+     * Record layout:  8 bytes per trait in Trait order, 4 byte kill count,
+     * 4 byte age
+     */
+    private static final int GENOME_OFFSET = 0;
+    private static final int KILLS_OFFSET = Trait.COUNT * 8;
+    private static final int AGE_OFFSET = KILLS_OFFSET + 4;
+    private static final int RECORD_BYTES = AGE_OFFSET + 4;
+
+    /*
+     * Records per chunk by default, about 40 MiB of records.  A record never
+     * straddles two chunks.
+     */
+    private static final int CHUNK_RECORDS = 1 << 20;
+
+    /*
+     * A single locale's predators are held in a List, so its slab never
+     * needs more records than a List can hold
+     */
+    private static final int MAX_SLAB_RECORDS = Integer.MAX_VALUE - 8;
+
+    private List<ByteBuffer> chunks = new ArrayList<>();
+    private int chunkRecords;
+    private File file;
+    private RandomAccessFile backingFile;
+    private FileChannel channel;
+
+    // Offset table, all measured in records rather than bytes
+    private long[] slabStarts;
+    private int[] slabCapacities;
+    private int[] slabSizes;
+
+    // First record past the end of the last slab
+    private long end;
+
+    /**
+     * Constructor for an arena backed by direct (off-heap) memory
+     * @param numLocales Number of locales that will store predators here
+     * @param predsPerLocale Starting slab capacity for each locale
+     */
+    public PopulationArena(int numLocales, int predsPerLocale) {
+        this(numLocales, predsPerLocale, null);
+    }
+
+    /**
+     * Constructor for an arena backed by a memory-mapped file.  The file is
+     * created if it does not exist and grows along with the arena.
+     * @param numLocales Number of locales that will store predators here
+     * @param predsPerLocale Starting slab capacity for each locale
+     * @param file File to map, or null to use direct memory instead
+     */
+    public PopulationArena(int numLocales, int predsPerLocale, File file) {
+        this(numLocales, predsPerLocale, file, CHUNK_RECORDS);
+    }
+
+    /**
+     * Constructor for an arena with a chosen chunk size
+     * @param numLocales Number of locales that will store predators here
+     * @param predsPerLocale Starting slab capacity for each locale
+     * @param file File to map, or null to use direct memory instead
+     * @param chunkRecords Number of records in each chunk
+     */
+    PopulationArena(int numLocales, int predsPerLocale, File file, int chunkRecords) {
+        if (chunkRecords < 1 || chunkRecords > Integer.MAX_VALUE / RECORD_BYTES) {
+            throw new IllegalArgumentException(
+                "Chunks cannot hold " + chunkRecords + " records");
+        }
+        this.chunkRecords = chunkRecords;
+        this.slabStarts = new long[numLocales];
+        this.slabCapacities = new int[numLocales];
+        this.slabSizes = new int[numLocales];
+
+        // Lay slabs out back to back
+        for (int i = 0; i < numLocales; i++) {
+            slabStarts[i] = (long)i * predsPerLocale;
+            slabCapacities[i] = predsPerLocale;
+        }
+        this.end = (long)numLocales * predsPerLocale;
+
+        try {
+            if (file != null) {
+                this.file = file;
+                this.backingFile = new RandomAccessFile(file, "rw");
+                this.channel = backingFile.getChannel();
+            }
+        } catch (IOException mapException) {
+            throw new IllegalStateException(
+                "Could not map population arena", mapException);
+        }
+        ensureCapacity(Math.max(end, 1));
+    }
+
+    /**
+     * Copies a locale's predators into its slab, moving the slab to the end
+     * of the arena if the predators no longer fit.
+     * @param locale Index of the locale
+     * @param predators Predators to store
+     */
+    public synchronized void store(int locale, List<Predator> predators) {
+        store(locale, predators, null);
+    }
+
+    /**
+     * Copies a locale's predators and their ages into its slab, moving the
+     * slab to the end of the arena if the predators no longer fit.
+     * @param locale Index of the locale
+     * @param predators Predators to store
+     * @param ages Age of each predator, or null if ages aren't tracked
+     */
+    public synchronized void store(int locale, List<Predator> predators, int[] ages) {
+        int count = predators.size();
+        if (count > slabCapacities[locale]) {
+            // Leave some headroom so a growing locale doesn't move every time
+            int capacity = (int)Math.min((long)count + count / 4 + 1,
+                MAX_SLAB_RECORDS);
+            ensureCapacity(end + capacity);
+            slabStarts[locale] = end;
+            slabCapacities[locale] = capacity;
+            end += capacity;
+        }
+
+        for (int i = 0; i < count; i++) {
+            long record = slabStarts[locale] + i;
+            ByteBuffer buffer = chunkOf(record);
+            int position = positionOf(record);
+            Predator pred = predators.get(i);
+            for (int trait = 0; trait < Trait.COUNT; trait++) {
+                buffer.putDouble(position + GENOME_OFFSET + trait * 8, pred.getTrait(trait));
+            }
+            buffer.putInt(position + KILLS_OFFSET, pred.getKills());
+            buffer.putInt(position + AGE_OFFSET, ages == null ? 0 : ages[i]);
+        }
+        slabSizes[locale] = count;
+    }
+
+    /**
+     * Rebuilds a locale's predators as on-heap objects
+     * @param locale Index of the locale
+     * @return New list containing one predator per stored record
+     */
+    public synchronized List<Predator> load(int locale) {
+        int count = slabSizes[locale];
+        List<Predator> predators = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long record = recordOf(locale, i);
+            ByteBuffer buffer = chunkOf(record);
+            int position = positionOf(record);
+            Predator pred = new Predator(buffer.getDouble(position + GENOME_OFFSET));
+            // Unexpressed traits are stored as NaN and leave the genome short
+            for (int trait = 1; trait < Trait.COUNT; trait++) {
+                pred.setTrait(trait, buffer.getDouble(position + GENOME_OFFSET + trait * 8));
+            }
+            pred.setKills(buffer.getInt(position + KILLS_OFFSET));
+            predators.add(pred);
+        }
+        return predators;
+    }
+
+    /**
+     * Reads back the ages of a locale's stored predators
+     * @param locale Index of the locale
+     * @return Age of each predator, in the same order as load()
+     */
+    public synchronized int[] loadAges(int locale) {
+        int count = slabSizes[locale];
+        int[] ages = new int[count];
+        for (int i = 0; i < count; i++) {
+            long record = recordOf(locale, i);
+            ages[i] = chunkOf(record).getInt(positionOf(record) + AGE_OFFSET);
+        }
+        return ages;
+    }
+
+    /**
+     * Getter for the number of predators stored for a locale
+     * @param locale Index of the locale
+     * @return Number of stored predators
+     */
+    public synchronized int size(int locale) {
+        return slabSizes[locale];
+    }
+
+    /**
+     * Reads a single stored predator's kill rate
+     * @param locale Index of the locale
+     * @param pred Index of the predator within the locale
+     * @return Kill rate of the predator
+     */
+    public synchronized double getKillRate(int locale, int pred) {
+        return getTrait(locale, pred, Trait.KILL_RATE);
+    }
+
+    /**
+     * Reads one trait of a single stored predator
+     * @param locale Index of the locale
+     * @param pred Index of the predator within the locale
+     * @param trait Trait to read
+     * @return Value of the trait, or NaN if it isn't expressed
+     */
+    public synchronized double getTrait(int locale, int pred, Trait trait) {
+        long record = recordOf(locale, pred);
+        return chunkOf(record).getDouble(positionOf(record)
+            + GENOME_OFFSET + trait.ordinal() * 8);
+    }
+
+    /**
+     * Reads a single stored predator's kill count
+     * @param locale Index of the locale
+     * @param pred Index of the predator within the locale
+     * @return Kills made by the predator in its last hunt
+     */
+    public synchronized int getKills(int locale, int pred) {
+        long record = recordOf(locale, pred);
+        return chunkOf(record).getInt(positionOf(record) + KILLS_OFFSET);
+    }
+
+    /**
+     * Slides every slab down to close the holes left by relocated slabs.
+     * Each slab keeps a little headroom past its current size.
+     */
+    public synchronized void compact() {
+        // Visit slabs in the order they sit in memory so that moving one never
+        // overwrites another that hasn't been moved yet
+        Integer[] order = new Integer[slabStarts.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) ->
+            Long.compare(slabStarts[a], slabStarts[b]));
+
+        long next = 0;
+        for (int locale : order) {
+            int size = slabSizes[locale];
+            int capacity = Math.min(slabCapacities[locale], size + size / 4 + 1);
+            moveRecords(slabStarts[locale], next, size);
+            slabStarts[locale] = next;
+            slabCapacities[locale] = capacity;
+            next += capacity;
+        }
+        end = next;
+
+        // Give whole chunks that are no longer used back
+        long neededChunks = Math.max((end + chunkRecords - 1) / chunkRecords, 1);
+        if (chunks.size() > neededChunks) {
+            while (chunks.size() > neededChunks) {
+                chunks.remove(chunks.size() - 1);
+            }
+            if (channel != null) {
+                // Nothing reads the dropped mappings again, so the file can
+                // shrink under them
+                try {
+                    channel.truncate(neededChunks * chunkRecords * RECORD_BYTES);
+                } catch (IOException truncateException) {
+                    truncateException.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compacts the arena only if more than half of it is wasted space
+     * @return Whether a compaction took place
+     */
+    public synchronized boolean compactIfFragmented() {
+        long used = 0;
+        for (int size : slabSizes) {
+            used += size;
+        }
+        if (used * 2 < end) {
+            compact();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases and deletes the backing file, if there is one.  The arena must
+     * not be used afterwards.
+     */
+    public synchronized void close() {
+        chunks.clear();
+        if (backingFile != null) {
+            try {
+                channel.close();
+                backingFile.close();
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+            if (!file.delete()) {
+                System.out.println("Could not delete arena file " + file);
+            }
+            backingFile = null;
+        }
+    }
+
+    /**
+     * Finds the arena-wide record number of one of a locale's predators
+     */
+    private long recordOf(int locale, int pred) {
+        if (pred < 0 || pred >= slabSizes[locale]) {
+            throw new IndexOutOfBoundsException(
+                "Predator " + pred + " of " + slabSizes[locale]);
+        }
+        return slabStarts[locale] + pred;
+    }
+
+    private ByteBuffer chunkOf(long record) {
+        return chunks.get((int)(record / chunkRecords));
+    }
+
+    private int positionOf(long record) {
+        return (int)(record % chunkRecords) * RECORD_BYTES;
+    }
+
+    private void moveRecords(long from, long to, int count) {
+        if (from == to) {
+            return;
+        }
+        // Slabs only ever move down, so copying front to back is safe even
+        // when the source and destination overlap
+        for (int i = 0; i < count; i++) {
+            ByteBuffer source = chunkOf(from + i);
+            ByteBuffer dest = chunkOf(to + i);
+            int fromByte = positionOf(from + i);
+            int toByte = positionOf(to + i);
+            for (int b = 0; b < RECORD_BYTES; b += 4) {
+                dest.putInt(toByte + b, source.getInt(fromByte + b));
+            }
+        }
+    }
+
+    /**
+     * Adds chunks until the arena can hold the given number of records
+     */
+    private void ensureCapacity(long records) {
+        try {
+            while ((long)chunks.size() * chunkRecords < records) {
+                chunks.add(allocateChunk(chunks.size()));
+            }
+        } catch (IOException allocateException) {
+            throw new IllegalStateException(
+                "Could not grow population arena", allocateException);
+        }
+    }
+
+    private ByteBuffer allocateChunk(int index) throws IOException {
+        int bytes = chunkRecords * RECORD_BYTES;
+        if (channel == null) {
+            return ByteBuffer.allocateDirect(bytes);
+        }
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long)index * bytes, bytes);
+    }
+}
@@ -1,20 +1,105 @@
 /**
- * Basic unit of a predator population.  Predators consist of a kill rate that determines what proportion of a prey
- * population they are likely to kill each generation, as well as a counter that keeps track of how many kills they
- * actually made in a generation.
+ * Basic unit of a predator population.  Predators consist of a genome of heritable traits, the most important being
+ * a kill rate that determines what proportion of a prey population they are likely to kill each generation, as well as
+ * a counter that keeps track of how many kills they actually made in a generation.  Every trait other than the kill
+ * rate is stored in an array that is only allocated once one is expressed, and only as long as the highest expressed
+ * trait needs, so predators with just a kill rate carry no array at all.
  */
+
+import java.util.Arrays;
+
 public class Predator{
     private double killRate;
     private int kills;
 
+    /*
+     * Every trait after the kill rate, indexed by ordinal - 1, or null while
+     * none is expressed.  Traits past the end of the array are unexpressed.
+     */
+    private double[] traits;
+
     /**
-     * Creates a predator with 0 kills and a specified kill rate
+     * Creates a predator with 0 kills, a specified kill rate, and no other traits expressed
      * @param initRate Predator's starting kill rate
      */
     public Predator(double initRate){
         this.killRate = initRate;
     }
 
+    /**
+     * Creates a predator with 0 kills and a copy of another predator's genome
+     * @param parent Predator to copy
+     */
+    public Predator(Predator parent) {
+        this.killRate = parent.killRate;
+        if (parent.traits != null) {
+            this.traits = parent.traits.clone();
+        }
+    }
+
+    /**
+     * Returns the number of traits the predator stores, in Trait order.  Every trait from this ordinal on is
+     * unexpressed.
+     * @return Number of stored traits, at least 1 for the kill rate
+     */
+    public int getGenomeLength() {
+        return traits == null ? 1 : traits.length + 1;
+    }
+
+    /**
+     * Returns the value of one trait
+     * @param trait Trait to look up
+     * @return Value of the trait, or NaN if it isn't expressed
+     */
+    public double getTrait(Trait trait) {
+        return getTrait(trait.ordinal());
+    }
+
+    /**
+     * Returns the value of one trait
+     * @param trait Ordinal of the trait to look up
+     * @return Value of the trait, or NaN if it isn't expressed
+     */
+    public double getTrait(int trait) {
+        if (trait == 0) {
+            return killRate;
+        }
+        if (traits == null || trait > traits.length) {
+            return Double.NaN;
+        }
+        return traits[trait - 1];
+    }
+
+    /**
+     * Sets the value of one trait
+     * @param trait Trait to set
+     * @param value New value
+     */
+    public void setTrait(Trait trait, double value) {
+        setTrait(trait.ordinal(), value);
+    }
+
+    /**
+     * Sets the value of one trait, growing the genome if the trait wasn't stored yet
+     * @param trait Ordinal of the trait to set
+     * @param value New value, or NaN to leave the trait unexpressed
+     */
+    public void setTrait(int trait, double value) {
+        if (trait == 0) {
+            killRate = value;
+            return;
+        }
+        if (traits == null || trait > traits.length) {
+            if (Double.isNaN(value)) {
+                return;
+            }
+            int oldLength = traits == null ? 0 : traits.length;
+            traits = traits == null ? new double[trait] : Arrays.copyOf(traits, trait);
+            Arrays.fill(traits, oldLength, trait, Double.NaN);
+        }
+        traits[trait - 1] = value;
+    }
+
     /**
      * Sets the predator's kill rate to a new double
      * @param killRate New kill rate
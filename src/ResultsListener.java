@@ -0,0 +1,31 @@
+/**
+ * Receives each locale's statistics as the simulation produces them, so that
+ * results can be streamed somewhere other than the in-memory locale logs.
+ * Records for the starting populations arrive as generation 0, before the
+ * first generation runs.  After that, records arrive after every locale has
+ * run a generation and before migration, matching the rows of the locale
+ * logs.
+ */
+public interface ResultsListener {
+    /**
+     * Receives one locale's statistics for one generation
+     * @param generation Generation number, starting from 0 for the starting
+     *                   populations
+     * @param x Horizontal coordinate of the locale
+     * @param y Vertical coordinate of the locale
+     * @param locale Locale whose most recent log snapshot should be recorded
+     */
+    void record(int generation, int x, int y, Locale locale);
+
+    /**
+     * Called once every locale's record for a generation has been delivered
+     * @param generation Generation number that just finished
+     */
+    void endGeneration(int generation);
+
+    /**
+     * Called once when the simulation has finished, or failed, so that any
+     * remaining results can be written out
+     */
+    void close();
+}
\ No newline at end of file
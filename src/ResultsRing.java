@@ -0,0 +1,184 @@
+/**
+ * Publishes results to a fixed-size, memory-mapped ring file while the
+ * simulation runs, so that other programs can watch a long run as it happens.
+ * Writing a record only touches mapped memory; nothing waits on the disk.
+ *
+ * All values are little-endian.  The file starts with a 64 byte header:
+ *
+ *   offset  type    field
+ *        0  int     magic number, 0x53505252 ("SPRR")
+ *        4  int     layout version, currently 1
+ *        8  int     number of slots in the ring
+ *       12  int     bytes per slot, currently 64
+ *       16  int     x dimension of the metapopulation
+ *       20  int     y dimension of the metapopulation
+ *       24  long    number of records written so far
+ *       32  int     1 once the simulation has finished, otherwise 0
+ *
+ * The header is followed by the slots.  Record number n (counting from 0)
+ * lives in slot n % slots, at byte 64 + (n % slots) * 64:
+ *
+ *   offset  type    field
+ *        0  long    sequence number n, written before the data
+ *        8  int     generation
+ *       12  int     x coordinate of the locale
+ *       16  int     y coordinate of the locale
+ *       20  int     prey
+ *       24  int     predators
+ *       28  int     flags, bit 0 set if the locale is in mean-field mode
+ *       32  double  maximum kill rate
+ *       40  double  average kill rate
+ *       48  long    sequence number n, written after the data
+ *
+ * Both sequence numbers of a slot that has never been written are -1.  To
+ * read record n, check that both sequence numbers equal n after reading the
+ * data.  If they don't, the writer lapped the reader and overwrote the
+ * slot.  The record count in the header is only advanced after a record is
+ * complete, so every record below it has been fully written at least once.
+ * ResultsRingReader is a small Java reader that follows this protocol.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class ResultsRing implements ResultsListener {
+    public static final int MAGIC = 0x53505252;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 64;
+    public static final int SLOT_BYTES = 64;
+
+    // Most slots that fit in a single mapping, which is limited to 2 GiB
+    public static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_BYTES) / SLOT_BYTES;
+
+    // Header offsets
+    public static final int SLOTS_OFFSET = 8;
+    public static final int SLOT_BYTES_OFFSET = 12;
+    public static final int X_DIMENSION_OFFSET = 16;
+    public static final int Y_DIMENSION_OFFSET = 20;
+    public static final int WRITE_COUNT_OFFSET = 24;
+    public static final int FINISHED_OFFSET = 32;
+
+    // Slot offsets
+    public static final int SEQUENCE_START_OFFSET = 0;
+    public static final int GENERATION_OFFSET = 8;
+    public static final int X_OFFSET = 12;
+    public static final int Y_OFFSET = 16;
+    public static final int PREY_OFFSET = 20;
+    public static final int PREDS_OFFSET = 24;
+    public static final int FLAGS_OFFSET = 28;
+    public static final int MAX_KR_OFFSET = 32;
+    public static final int AVG_KR_OFFSET = 40;
+    public static final int SEQUENCE_END_OFFSET = 48;
+
+    /*
+     * Ordered access to the sequence numbers, so a reader in another process
+     * never sees a sequence number before the data it guards
+     */
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(
+        long[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(
+        int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int slots;
+    private long written = 0;
+
+    /**
+     * Creates, or overwrites, a ring file
+     * @param ringFile File to map
+     * @param slots Number of records the ring holds before wrapping around,
+     *              from 1 to MAX_SLOTS
+     * @param xDimension Width of the metapopulation
+     * @param yDimension Height of the metapopulation
+     */
+    public ResultsRing(File ringFile, int slots, int xDimension, int yDimension) {
+        if (slots < 1 || slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("A results ring holds 1 to "
+                + MAX_SLOTS + " slots in one mapping, not " + slots);
+        }
+        this.slots = slots;
+        try {
+            this.file = new RandomAccessFile(ringFile, "rw");
+            long bytes = HEADER_BYTES + (long)slots * SLOT_BYTES;
+            file.setLength(0);
+            file.setLength(bytes);
+            this.buffer = file.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } catch (IOException mapException) {
+            throw new IllegalStateException(
+                "Could not map results ring", mapException);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(4, VERSION);
+        buffer.putInt(SLOTS_OFFSET, slots);
+        buffer.putInt(SLOT_BYTES_OFFSET, SLOT_BYTES);
+        buffer.putInt(X_DIMENSION_OFFSET, xDimension);
+        buffer.putInt(Y_DIMENSION_OFFSET, yDimension);
+        for (int i = 0; i < slots; i++) {
+            int slot = slotOffset(i);
+            buffer.putLong(slot + SEQUENCE_START_OFFSET, -1L);
+            buffer.putLong(slot + SEQUENCE_END_OFFSET, -1L);
+        }
+        LONGS.setRelease(buffer, WRITE_COUNT_OFFSET, 0L);
+        INTS.setRelease(buffer, FINISHED_OFFSET, 0);
+
+        // Magic number goes last, marking the header as ready
+        INTS.setRelease(buffer, 0, MAGIC);
+    }
+
+    @Override
+    public void record(int generation, int x, int y, Locale locale) {
+        long sequence = written;
+        int slot = slotOffset(sequence % slots);
+
+        // Invalidate the slot, fill it in, then stamp it as complete
+        LONGS.setRelease(buffer, slot + SEQUENCE_END_OFFSET, -1L);
+        LONGS.setRelease(buffer, slot + SEQUENCE_START_OFFSET, sequence);
+        VarHandle.storeStoreFence();
+        buffer.putInt(slot + GENERATION_OFFSET, generation);
+        buffer.putInt(slot + X_OFFSET, x);
+        buffer.putInt(slot + Y_OFFSET, y);
+        buffer.putInt(slot + PREY_OFFSET, locale.getLoggedPrey());
+        buffer.putInt(slot + PREDS_OFFSET, locale.getLoggedPreds());
+        buffer.putInt(slot + FLAGS_OFFSET, locale.isMeanField() ? 1 : 0);
+        buffer.putDouble(slot + MAX_KR_OFFSET, locale.getLoggedMaxKillRate());
+        buffer.putDouble(slot + AVG_KR_OFFSET, locale.getLoggedAvgKillRate());
+        LONGS.setRelease(buffer, slot + SEQUENCE_END_OFFSET, sequence);
+
+        written++;
+        LONGS.setRelease(buffer, WRITE_COUNT_OFFSET, written);
+    }
+
+    @Override
+    public void endGeneration(int generation) {
+        // Records are visible as soon as they are written
+    }
+
+    /**
+     * Finds the byte offset of a slot.  The arithmetic is done in long, and
+     * the constructor's limit on slots keeps the result within an int.
+     * @param index Index of the slot
+     * @return Offset of the slot in the file
+     */
+    static int slotOffset(long index) {
+        return (int)(HEADER_BYTES + index * SLOT_BYTES);
+    }
+
+    @Override
+    public void close() {
+        INTS.setRelease(buffer, FINISHED_OFFSET, 1);
+        try {
+            file.close();
+        } catch (IOException closeException) {
+            closeException.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Follows a results ring written by a running simulation and prints each
+ * record as a line of .csv, much like "tail -f".  See ResultsRing for the
+ * file layout.
+ *
+ * Usage:  java ResultsRingReader ring-file
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class ResultsRingReader {
+    private MappedByteBuffer buffer;
+    private int slots;
+    private long next = 0;
+    private long skipped = 0;
+
+    /**
+     * Maps an existing ring file for reading
+     * @param fileName Name of the ring file
+     * @throws IOException If the file can't be mapped
+     */
+    public ResultsRingReader(String fileName) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+            this.buffer = file.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if ((int)ResultsRing.INTS.getAcquire(buffer, 0) != ResultsRing.MAGIC) {
+            throw new IOException(fileName + " is not a results ring");
+        }
+        this.slots = buffer.getInt(ResultsRing.SLOTS_OFFSET);
+    }
+
+    /**
+     * Prints every record written since the last call
+     * @return Whether the writer has finished
+     */
+    public boolean poll() {
+        // Read the finished flag first so that no record written before it
+        // was set can be missed
+        boolean finished =
+            (int)ResultsRing.INTS.getAcquire(buffer, ResultsRing.FINISHED_OFFSET) == 1;
+        long written =
+            (long)ResultsRing.LONGS.getAcquire(buffer, ResultsRing.WRITE_COUNT_OFFSET);
+
+        // Records more than a full ring behind have already been overwritten
+        if (written - next > slots) {
+            skipped += written - slots - next;
+            next = written - slots;
+        }
+        while (next < written) {
+            String row = readRecord(next);
+            if (row == null) {
+                skipped++;
+            } else {
+                System.out.println(row);
+            }
+            next++;
+        }
+        return finished;
+    }
+
+    /**
+     * Reads one record, checking its sequence numbers
+     * @param sequence Number of the record
+     * @return Record as a line of .csv, or null if it was overwritten
+     */
+    private String readRecord(long sequence) {
+        int slot = ResultsRing.slotOffset(sequence % slots);
+        long start = (long)ResultsRing.LONGS.getAcquire(
+            buffer, slot + ResultsRing.SEQUENCE_START_OFFSET);
+        String row = buffer.getInt(slot + ResultsRing.GENERATION_OFFSET) + ","
+            + buffer.getInt(slot + ResultsRing.X_OFFSET) + ","
+            + buffer.getInt(slot + ResultsRing.Y_OFFSET) + ","
+            + buffer.getInt(slot + ResultsRing.PREY_OFFSET) + ","
+            + buffer.getInt(slot + ResultsRing.PREDS_OFFSET) + ","
+            + buffer.getDouble(slot + ResultsRing.MAX_KR_OFFSET) + ","
+            + buffer.getDouble(slot + ResultsRing.AVG_KR_OFFSET);
+        VarHandle.loadLoadFence();
+        long end = (long)ResultsRing.LONGS.getAcquire(
+            buffer, slot + ResultsRing.SEQUENCE_END_OFFSET);
+        if (start != sequence || end != sequence) {
+            return null;
+        }
+        return row;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage:  java ResultsRingReader ring-file");
+            return;
+        }
+        ResultsRingReader reader = new ResultsRingReader(args[0]);
+        System.out.println("Generation, X, Y, Prey, Preds, Max KR, Avg KR");
+        boolean finished = false;
+        while (!finished) {
+            finished = reader.poll();
+            Thread.sleep(100);
+        }
+        reader.poll();
+        if (reader.skipped > 0) {
+            System.out.println("Skipped " + reader.skipped + " overwritten records");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Heritable traits that make up a predator's genome.  Each predator stores
+ * its kill rate directly and the traits after it in an array in this order,
+ * allocated only once one of them is expressed.  Traits are kept with each
+ * predator rather than in arrays spanning the whole population, so crossover
+ * and mutation still work one predator at a time.
+ *
+ * Every trait but the kill rate starts out unexpressed (NaN), and predators
+ * behave as they would without it until a generation gives the trait a
+ * starting value.
+ *
+ * KILL_RATE:  Chance of killing each prey during a generation
+ *
+ * LONGEVITY:  Divides the chance of dying at each age when predators age
+ *
+ * KILL_CAP:  Most prey a predator can kill in one generation, rounded down,
+ *  after which it is full and stops hunting
+ *
+ * BROOD_SIZE:  Most children a predator can have in one generation, rounded
+ *  down, in place of the generation's shared cap
+ */
+public enum Trait {
+    KILL_RATE,
+    LONGEVITY,
+    KILL_CAP,
+    BROOD_SIZE;
+
+    /*
+     * Number of traits, cached since values() copies its array
+     */
+    public static final int COUNT = values().length;
+
+    /**
+     * Name of the trait as used in logs
+     * @return Lower case name with spaces
+     */
+    public String label() {
+        return name().toLowerCase().replace('_', ' ');
+    }
+}